@@ -0,0 +1,64 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning a received hex or base64 record back into its BER bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+	@Param({ "64", "512", "4096" })
+	public int payloadBytes;
+
+	private char[] hex;
+	private String base64;
+
+	@Setup
+	public void setup() {
+		hex = Payloads.hex(payloadBytes).toCharArray();
+		base64 = Payloads.base64(payloadBytes);
+	}
+
+	@Benchmark
+	public byte[] hexDecode() throws DecoderException {
+		return Hex.decodeHex(hex);
+	}
+
+	@Benchmark
+	public byte[] base64Decode() {
+		return Base64.decodeBase64(base64);
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.benchmarks;
+
+import gov.usdot.cv.whtools.client.handler.DepositFrameEncoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building a DEPOSIT: frame, from a hex or base64 line of a deposit
+ * file and from the bytes of a BER file. The format benchmarks are the
+ * baseline, building the frame with String.format and Hex.encodeHex as the
+ * deposit handler did before DepositFrameEncoder.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DepositFrameBenchmark {
+
+	private static final String SYSTEM_DEPOSIT_NAME = "SDC 2.3";
+	private static final String ENCODE_TYPE = "hex";
+	private static final String DEPOSIT_MESSAGE_FORMAT = "DEPOSIT: { \"systemDepositName\": \"%s\", \"encodeType\": \"%s\", \"encodedMsg\": \"%s\" }";
+
+	@Param({ "64", "512", "4096" })
+	public int payloadBytes;
+
+	private DepositFrameEncoder encoder;
+	private String line;
+	private byte[] ber;
+
+	@Setup
+	public void setup() {
+		encoder = new DepositFrameEncoder(SYSTEM_DEPOSIT_NAME, ENCODE_TYPE);
+		line = Payloads.hex(payloadBytes);
+		ber = Payloads.bytes(payloadBytes);
+	}
+
+	@Benchmark
+	public String encodeLine() {
+		return encoder.encode(line);
+	}
+
+	@Benchmark
+	public String encodeBer() throws IOException {
+		return encoder.encodeHex(new ByteArrayInputStream(ber));
+	}
+
+	@Benchmark
+	public String formatLine() {
+		return String.format(DEPOSIT_MESSAGE_FORMAT, SYSTEM_DEPOSIT_NAME, ENCODE_TYPE, line);
+	}
+
+	@Benchmark
+	public String formatBer() {
+		char[] message = Hex.encodeHex(ber);
+		return String.format(DEPOSIT_MESSAGE_FORMAT, SYSTEM_DEPOSIT_NAME, ENCODE_TYPE, new String(message));
+	}
+}
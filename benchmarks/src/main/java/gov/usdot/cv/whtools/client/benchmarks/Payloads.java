@@ -0,0 +1,63 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.benchmarks;
+
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Builds the benchmark payloads. The bytes are random but seeded, so every
+ * run and every release measures the same input.
+ */
+final class Payloads {
+
+	private Payloads() {
+	}
+
+	static byte[] bytes(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+	static String hex(int size) {
+		return Hex.encodeHexString(bytes(size));
+	}
+
+	static String base64(int size) {
+		return Base64.encodeBase64String(bytes(size));
+	}
+
+	/**
+	 * A record as received with resultEncoding "full", carrying the payload hex encoded.
+	 */
+	static String fullRecord(int size) {
+		return "{\"dialogID\":154,\"receivedAt\":\"2016-09-01T12:00:00\",\"sourceName\":\"bench\","
+				+ "\"location\":{\"lat\":42.2929,\"lon\":-83.7125,\"elevation\":265.2},"
+				+ "\"encodedMsg\":\"" + hex(size) + "\"}";
+	}
+
+	static String record(String encoding, int size) {
+		if ("hex".equals(encoding))
+			return hex(size);
+		if ("base64".equals(encoding))
+			return base64(size);
+		return fullRecord(size);
+	}
+
+	static String startTag(String encoding) {
+		return "START:{\"dialogID\":154,\"resultEncoding\":\"" + encoding + "\"}";
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.benchmarks;
+
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+import gov.usdot.cv.whtools.client.handler.FullRecordDecoder;
+import gov.usdot.cv.whtools.client.handler.ResponseHandler;
+import gov.usdot.cv.whtools.client.handler.ResponseMessage;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of ResponseHandler.decode for a data record of each resultEncoding,
+ * including the byte decoding a binary sink does and the field projection
+ * of full records, and of parsing a START: message. The projection is also
+ * measured on its own, with FullRecordDecoder and, as the baseline, with
+ * ObjectMapper.readTree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseDecodeBenchmark {
+
+	private static final String SESSION = "session-0";
+
+	@Param({ "hex", "base64", "full" })
+	public String encoding;
+
+	@Param({ "64", "512", "4096" })
+	public int payloadBytes;
+
+	/**
+	 * Fields kept from full records, empty writes them unchanged.
+	 */
+	@Param({ "", "dialogID,location.lat,location.lon,encodedMsg" })
+	public String fullRecordFields;
+
+	private ResponseHandler handler;
+	private String record;
+	private String startTag;
+
+	@Setup
+	public void setup() {
+		WarehouseConfig wsConfig = new WarehouseConfig();
+		wsConfig.warehouseURL = "ws://localhost/websocket";
+		wsConfig.fullRecordFields = fullRecordFields.isEmpty() ? new String[0] : fullRecordFields.split(",");
+		wsConfig.postLoadCalculateValues();
+		handler = new ResponseHandler(wsConfig);
+		startTag = Payloads.startTag(encoding);
+		handler.decode(SESSION, startTag);
+		record = Payloads.record(encoding, payloadBytes);
+	}
+
+	@TearDown
+	public void tearDown() {
+		handler.close();
+	}
+
+	@Benchmark
+	public Object decode() {
+		ResponseMessage message = handler.decode(SESSION, record);
+		return message.isBinary() ? message.getBytes() : message.getText();
+	}
+
+	@Benchmark
+	public ResponseMessage startTag() {
+		return handler.decode(SESSION, startTag);
+	}
+
+	/**
+	 * Projecting the fields of a full record alone, independent of the
+	 * encodings measured above.
+	 */
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Warmup(iterations = 5, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	@Fork(1)
+	@State(Scope.Benchmark)
+	public static class Projection {
+		private static final String[] FIELDS = { "dialogID", "location.lat", "location.lon", "encodedMsg" };
+
+		@Param({ "64", "512", "4096" })
+		public int payloadBytes;
+
+		private String record;
+		private FullRecordDecoder decoder;
+		private FullRecordDecoder.FullRecord decoded;
+		private ObjectMapper mapper;
+		private String[][] paths;
+
+		@Setup
+		public void setup() {
+			record = Payloads.fullRecord(payloadBytes);
+			decoder = new FullRecordDecoder(FIELDS);
+			decoded = decoder.newRecord();
+			mapper = new ObjectMapper();
+			paths = new String[FIELDS.length][];
+			for (int i = 0; i < FIELDS.length; i++) {
+				paths[i] = FIELDS[i].split("\\.");
+			}
+		}
+
+		@Benchmark
+		public FullRecordDecoder.FullRecord streaming() throws IOException {
+			decoder.decode(record, decoded);
+			return decoded;
+		}
+
+		@Benchmark
+		public String[] readTree() throws IOException {
+			JsonNode root = mapper.readTree(record);
+			String[] values = new String[paths.length];
+			for (int i = 0; i < paths.length; i++) {
+				JsonNode node = root;
+				for (String name : paths[i]) {
+					node = node.path(name);
+				}
+				values[i] = node.isMissingNode() ? null : node.asText();
+			}
+			return values;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.benchmarks;
+
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+import gov.usdot.cv.whtools.client.handler.MessageSink;
+import gov.usdot.cv.whtools.client.handler.ResponseHandler;
+import gov.usdot.cv.whtools.client.handler.ResponseMessage;
+import gov.usdot.cv.whtools.client.handler.TextFileSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost per record of writing a batch of received records as text, the work
+ * done for writeToDisk without binaryFiles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TextSinkBenchmark {
+
+	private static final int BATCH_SIZE = 256;
+	private static final String SESSION = "session-0";
+
+	@Param({ "hex", "base64", "full" })
+	public String encoding;
+
+	@Param({ "64", "512", "4096" })
+	public int payloadBytes;
+
+	private File responseDir;
+	private MessageSink sink;
+	private ResponseHandler handler;
+	private List<ResponseMessage> batch = new ArrayList<ResponseMessage>();
+
+	@Setup
+	public void setup() throws Exception {
+		responseDir = Files.createTempDirectory("whtools-bench").toFile();
+		WarehouseConfig wsConfig = new WarehouseConfig();
+		wsConfig.warehouseURL = "ws://localhost/websocket";
+		wsConfig.responseDir = responseDir.getAbsolutePath();
+		wsConfig.postLoadCalculateValues();
+		sink = new TextFileSink();
+		sink.open(wsConfig);
+		// Decoding only, the sink under test is driven directly
+		handler = new ResponseHandler(wsConfig);
+		handler.decode(SESSION, Payloads.startTag(encoding));
+		String record = Payloads.record(encoding, payloadBytes);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			ResponseMessage message = handler.decode(SESSION, record);
+			message.getBytes();
+			batch.add(message);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		sink.close();
+		handler.close();
+		FileUtils.deleteDirectory(responseDir);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void writeBatch() {
+		sink.onMessages(batch);
+	}
+}
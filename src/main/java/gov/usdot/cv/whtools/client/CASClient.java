@@ -19,6 +19,10 @@ import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,21 +34,42 @@ import org.apache.http.client.CookieStore;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
+/**
+ * Logs in to the Warehouse through CAS. All CAS and Warehouse calls share one
+ * pooled HttpClient, so connections and TLS sessions are reused between them.
+ * The ticket granting ticket is cached for casTgtLifetimeMinutes and reused
+ * for every login, and startRenewal() logs in again every casRenewMinutes in
+ * the background so a fresh session ID is always available.
+ */
 public class CASClient {
 
 	private static final Logger logger = Logger.getLogger(CASClient.class
 			.getName());
 
+	public interface SessionListener {
+		void onSessionRenewed(String sessionID);
+	}
+
 	private WarehouseConfig wsConfig;
 	private SSLConnectionSocketFactory sslSocketFactory;
+	private PoolingHttpClientConnectionManager connectionManager;
+	private CloseableHttpClient httpclient;
+	private String ticketGrantingTicket;
+	private long ticketGrantingTicketExpires;
+	private ScheduledExecutorService renewalExecutor;
 	
 	public static CASClient configure(WarehouseConfig wsConfig) throws KeyManagementException,
 			KeyStoreException, NoSuchAlgorithmException, CertificateException,
@@ -53,27 +78,38 @@ public class CASClient {
 		CASClient casClient = new CASClient();
 		casClient.wsConfig = wsConfig;
 		
-		SSLContext sslContext;
-		if(wsConfig.keystoreFile != null && wsConfig.keystorePassword != null) {
-			sslContext = SSLBuilder.buildSSLContext(wsConfig.keystoreFile, wsConfig.keystorePassword);
-		}
-		else {
-			sslContext = SSLBuilder.buildSSLContext();
-		}
-
+		SSLContext sslContext = SSLBuilder.getSharedSSLContext(wsConfig);
 		casClient.sslSocketFactory = SSLBuilder
-				.buildSSLConnectionSocketFactory(sslContext);
+				.buildSSLConnectionSocketFactory(sslContext, wsConfig);
+		
+		casClient.connectionManager = new PoolingHttpClientConnectionManager(
+				RegistryBuilder.<ConnectionSocketFactory>create()
+						.register("http", PlainConnectionSocketFactory.getSocketFactory())
+						.register("https", casClient.sslSocketFactory).build());
+		casClient.connectionManager.setMaxTotal(wsConfig.casMaxConnections);
+		casClient.connectionManager.setDefaultMaxPerRoute(wsConfig.casMaxConnections);
+		casClient.httpclient = HttpClients.custom()
+				.setConnectionManager(casClient.connectionManager).build();
 
 		return casClient;
 	}
 	
 	public String login() throws ClientProtocolException, IOException, CASLoginException {
 
-		String ticketGrantingTicket = getTicketGrantingTicket(wsConfig.casURL, wsConfig.casUserName, wsConfig.casPassword);
-		logger.info("Got ticketGrantingTicket " + ticketGrantingTicket);
+		String ticketGrantingTicket = getCachedTicketGrantingTicket();
 		
-		String serviceTicket = getServiceTicket(wsConfig.casURL,
-				ticketGrantingTicket, wsConfig.httpWarehouseURL);
+		String serviceTicket;
+		try {
+			serviceTicket = getServiceTicket(wsConfig.casURL,
+					ticketGrantingTicket, wsConfig.httpWarehouseURL);
+		} catch (CASLoginException e) {
+			// The cached ticket may have been expired or revoked by the CAS server
+			logger.info("Cached ticketGrantingTicket was rejected, requesting a new one");
+			invalidateTicketGrantingTicket(ticketGrantingTicket);
+			ticketGrantingTicket = getCachedTicketGrantingTicket();
+			serviceTicket = getServiceTicket(wsConfig.casURL,
+					ticketGrantingTicket, wsConfig.httpWarehouseURL);
+		}
 		logger.info("Got serviceTicket " + serviceTicket);
 		
 		String sessionID = getServiceCall(wsConfig.httpWarehouseURL, serviceTicket);
@@ -81,19 +117,78 @@ public class CASClient {
 
 		return sessionID;
 	}
+	
+	/**
+	 * Logs in again every casRenewMinutes and hands the new session ID to the
+	 * listener. A failed renewal is retried after a minute while the current
+	 * session is still valid.
+	 */
+	public synchronized void startRenewal(final SessionListener listener) {
+		if (renewalExecutor != null || wsConfig.casRenewMinutes <= 0)
+			return;
+		renewalExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CASRenewal");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		renewalExecutor.schedule(new Runnable() {
+			public void run() {
+				long delayMinutes = wsConfig.casRenewMinutes;
+				try {
+					String sessionID = login();
+					listener.onSessionRenewed(sessionID);
+				} catch (Exception e) {
+					logger.warn("CAS session renewal failed, retrying in 1 minute", e);
+					delayMinutes = Math.min(1, delayMinutes);
+				}
+				synchronized (CASClient.this) {
+					if (renewalExecutor != null && !renewalExecutor.isShutdown())
+						renewalExecutor.schedule(this, delayMinutes, TimeUnit.MINUTES);
+				}
+			}
+		}, wsConfig.casRenewMinutes, TimeUnit.MINUTES);
+		logger.info("Renewing the CAS session every " + wsConfig.casRenewMinutes + " minute(s)");
+	}
+	
+	public synchronized void close() {
+		if (renewalExecutor != null) {
+			renewalExecutor.shutdownNow();
+			renewalExecutor = null;
+		}
+		try {
+			httpclient.close();
+		} catch (IOException e) {
+			logger.warn("Failed to close CAS HttpClient", e);
+		}
+	}
+	
+	private synchronized String getCachedTicketGrantingTicket()
+			throws ClientProtocolException, IOException, CASLoginException {
+		if (ticketGrantingTicket == null || System.currentTimeMillis() >= ticketGrantingTicketExpires) {
+			ticketGrantingTicket = getTicketGrantingTicket(wsConfig.casURL, wsConfig.casUserName, wsConfig.casPassword);
+			ticketGrantingTicketExpires = System.currentTimeMillis()
+					+ TimeUnit.MINUTES.toMillis(wsConfig.casTgtLifetimeMinutes);
+			logger.info("Got ticketGrantingTicket " + ticketGrantingTicket);
+		}
+		return ticketGrantingTicket;
+	}
+	
+	private synchronized void invalidateTicketGrantingTicket(String rejected) {
+		if (rejected.equals(ticketGrantingTicket))
+			ticketGrantingTicket = null;
+	}
 
 	private String getTicketGrantingTicket(String server, String username,
 			String password)
 			throws ClientProtocolException, IOException, CASLoginException {
 
-		CloseableHttpClient httpclient = HttpClients.custom()
-				.setSSLSocketFactory(sslSocketFactory).build();
+		HttpUriRequest request = RequestBuilder.post().setUri(server)
+				.addParameter("username", username)
+				.addParameter("password", password).build();
+		CloseableHttpResponse response = httpclient.execute(request, newContext(new BasicCookieStore()));
 		try {
-
-			HttpUriRequest request = RequestBuilder.post().setUri(server)
-					.addParameter("username", username)
-					.addParameter("password", password).build();
-			CloseableHttpResponse response = httpclient.execute(request);
 			
 			int statusCode = response.getStatusLine().getStatusCode();
 			String responseBody = EntityUtils.toString(response.getEntity());
@@ -111,7 +206,7 @@ public class CASClient {
 			}
 			
 		} finally {
-			httpclient.close();
+			response.close();
 		}
 	}
 
@@ -119,15 +214,12 @@ public class CASClient {
 			String service)
 			throws ClientProtocolException, IOException, CASLoginException {
 
-		CloseableHttpClient httpclient = HttpClients.custom()
-				.setSSLSocketFactory(sslSocketFactory).build();
-		try {
-
-			HttpUriRequest request = RequestBuilder.post()
-					.setUri(server + "/" + ticketGrantingTicket)
-					.addParameter("service", service).build();
+		HttpUriRequest request = RequestBuilder.post()
+				.setUri(server + "/" + ticketGrantingTicket)
+				.addParameter("service", service).build();
 
-			CloseableHttpResponse response = httpclient.execute(request);
+		CloseableHttpResponse response = httpclient.execute(request, newContext(new BasicCookieStore()));
+		try {
 			int statusCode = response.getStatusLine().getStatusCode();
 			String responseBody = EntityUtils.toString(response.getEntity());
 
@@ -138,23 +230,18 @@ public class CASClient {
 			}
 			
 		} finally {
-			httpclient.close();
+			response.close();
 		}
 	}
 
 	private String getServiceCall(String service, String serviceTicket) throws IOException, CASLoginException {
 
 		CookieStore cookieStore = new BasicCookieStore();
-		CloseableHttpClient httpclient = HttpClients.custom()
-				.setDefaultCookieStore(cookieStore).setSSLSocketFactory(sslSocketFactory)
-				.build();
+		HttpUriRequest request = RequestBuilder.get().setUri(service)
+				.addParameter("ticket", serviceTicket).build();
 
+		CloseableHttpResponse response = httpclient.execute(request, newContext(cookieStore));
 		try {
-
-			HttpUriRequest request = RequestBuilder.get().setUri(service)
-					.addParameter("ticket", serviceTicket).build();
-
-			CloseableHttpResponse response = httpclient.execute(request);
 			int statusCode = response.getStatusLine().getStatusCode();
 			String responseBody = EntityUtils.toString(response.getEntity());
 
@@ -165,9 +252,18 @@ public class CASClient {
 			}
 			
 		} finally {
-			httpclient.close();
+			response.close();
 		}
 	}
+	
+	/**
+	 * Each call gets its own cookies, so a login never sees the cookies of another.
+	 */
+	private static HttpClientContext newContext(CookieStore cookieStore) {
+		HttpClientContext context = HttpClientContext.create();
+		context.setCookieStore(cookieStore);
+		return context;
+	}
 
 	private String getSessionID(CookieStore cookieStore) {
 		String sessionID = "";
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.common.extensions.compress.PerMessageDeflateExtension;
+
+/**
+ * The permessage-deflate extension, counting the message bytes before and
+ * after compression on all sessions so the compression ratio can be reported.
+ */
+public class CompressionStatsExtension extends PerMessageDeflateExtension {
+
+	private static final AtomicLong compressedIn = new AtomicLong();
+	private static final AtomicLong uncompressedIn = new AtomicLong();
+	private static final AtomicLong uncompressedOut = new AtomicLong();
+	private static final AtomicLong compressedOut = new AtomicLong();
+
+	@Override
+	public void incomingFrame(Frame frame) {
+		if (frame.getType().isData())
+			compressedIn.addAndGet(frame.getPayloadLength());
+		super.incomingFrame(frame);
+	}
+
+	@Override
+	protected void nextIncomingFrame(Frame frame) {
+		if (frame.getType().isData())
+			uncompressedIn.addAndGet(frame.getPayloadLength());
+		super.nextIncomingFrame(frame);
+	}
+
+	@Override
+	public void outgoingFrame(Frame frame, WriteCallback callback, BatchMode batchMode) {
+		if (frame.getType().isData())
+			uncompressedOut.addAndGet(frame.getPayloadLength());
+		super.outgoingFrame(frame, callback, batchMode);
+	}
+
+	@Override
+	protected void nextOutgoingFrame(Frame frame, WriteCallback callback, BatchMode batchMode) {
+		if (frame.getType().isData())
+			compressedOut.addAndGet(frame.getPayloadLength());
+		super.nextOutgoingFrame(frame, callback, batchMode);
+	}
+
+	public static long getCompressedBytesIn() {
+		return compressedIn.get();
+	}
+
+	public static long getUncompressedBytesIn() {
+		return uncompressedIn.get();
+	}
+
+	public static long getCompressedBytesOut() {
+		return compressedOut.get();
+	}
+
+	public static long getUncompressedBytesOut() {
+		return uncompressedOut.get();
+	}
+
+	/**
+	 * Uncompressed bytes per compressed byte received, 0 before anything was received.
+	 */
+	public static double getCompressionRatioIn() {
+		long compressed = compressedIn.get();
+		return compressed == 0 ? 0 : (double) uncompressedIn.get() / compressed;
+	}
+
+	public static double getCompressionRatioOut() {
+		long compressed = compressedOut.get();
+		return compressed == 0 ? 0 : (double) uncompressedOut.get() / compressed;
+	}
+
+	public static String describe() {
+		return String.format("received %d bytes as %d (ratio %.2f), sent %d bytes as %d (ratio %.2f)",
+				uncompressedIn.get(), compressedIn.get(), getCompressionRatioIn(),
+				uncompressedOut.get(), compressedOut.get(), getCompressionRatioOut());
+	}
+}
@@ -12,6 +12,8 @@
  */
 package gov.usdot.cv.whtools.client;
 
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -20,15 +22,53 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLContexts;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
 
 public class SSLBuilder {
 
+	private static final Logger logger = Logger.getLogger(SSLBuilder.class
+			.getName());
+
+	private static SSLContext sharedContext;
+
+	/**
+	 * Returns the SSLContext shared by the CAS client and the WebSocket client.
+	 * The keystore is loaded once, and the shared client session cache lets
+	 * later connections to the same server resume the TLS session instead of
+	 * doing a full handshake.
+	 */
+	public static synchronized SSLContext getSharedSSLContext(WarehouseConfig wsConfig)
+			throws KeyStoreException, NoSuchAlgorithmException,
+			CertificateException, IOException, KeyManagementException {
+		if (sharedContext == null) {
+			SSLContext sslcontext;
+			if (wsConfig.keystoreFile != null && wsConfig.keystorePassword != null) {
+				sslcontext = buildSSLContext(wsConfig.keystoreFile, wsConfig.keystorePassword);
+			} else {
+				sslcontext = buildSSLContext();
+			}
+			SSLSessionContext sessionContext = sslcontext.getClientSessionContext();
+			sessionContext.setSessionCacheSize(wsConfig.tlsSessionCacheSize);
+			sessionContext.setSessionTimeout(wsConfig.tlsSessionTimeoutSeconds);
+			logger.info("TLS protocols " + Arrays.toString(getProtocols(sslcontext, wsConfig))
+					+ ", cipher suites " + (wsConfig.tlsCipherSuites != null
+							? Arrays.toString(getCipherSuites(sslcontext, wsConfig)) : "JVM default"));
+			sharedContext = sslcontext;
+		}
+		return sharedContext;
+	}
+
 	public static SSLContext buildSSLContext(String keystoreFile,
 			String storePassword) throws KeyStoreException,
 			NoSuchAlgorithmException, CertificateException, IOException,
@@ -57,10 +97,64 @@ public class SSLBuilder {
 	}
 
 	public static SSLConnectionSocketFactory buildSSLConnectionSocketFactory(
-			SSLContext sslcontext) {
+			SSLContext sslcontext, WarehouseConfig wsConfig) {
 		SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(
-				sslcontext, new String[] { "TLSv1", "TLSv1.1", "TLSv1.2" }, null,
+				sslcontext, getProtocols(sslcontext, wsConfig), getCipherSuites(sslcontext, wsConfig),
 				SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
 		return sslsf;
 	}
+
+	public static SslContextFactory buildSslContextFactory(SSLContext sslcontext,
+			WarehouseConfig wsConfig) {
+		SslContextFactory sslContextFactory = new SslContextFactory();
+		sslContextFactory.setSslContext(sslcontext);
+		sslContextFactory.setIncludeProtocols(getProtocols(sslcontext, wsConfig));
+		String[] cipherSuites = getCipherSuites(sslcontext, wsConfig);
+		if (cipherSuites != null) {
+			sslContextFactory.setIncludeCipherSuites(cipherSuites);
+		}
+		return sslContextFactory;
+	}
+
+	/**
+	 * The configured tlsProtocols that this JVM supports, in configured order.
+	 */
+	static String[] getProtocols(SSLContext sslcontext, WarehouseConfig wsConfig) {
+		String[] protocols = supported(wsConfig.tlsProtocols,
+				sslcontext.getSupportedSSLParameters().getProtocols());
+		if (protocols.length == 0) {
+			throw new IllegalArgumentException("None of the tlsProtocols "
+					+ Arrays.toString(wsConfig.tlsProtocols) + " are supported");
+		}
+		return protocols;
+	}
+
+	/**
+	 * The configured tlsCipherSuites that this JVM supports, in order of
+	 * preference, or null to use the JVM defaults.
+	 */
+	static String[] getCipherSuites(SSLContext sslcontext, WarehouseConfig wsConfig) {
+		if (wsConfig.tlsCipherSuites == null || wsConfig.tlsCipherSuites.length == 0)
+			return null;
+		String[] cipherSuites = supported(wsConfig.tlsCipherSuites,
+				sslcontext.getSupportedSSLParameters().getCipherSuites());
+		if (cipherSuites.length == 0) {
+			throw new IllegalArgumentException("None of the tlsCipherSuites "
+					+ Arrays.toString(wsConfig.tlsCipherSuites) + " are supported");
+		}
+		return cipherSuites;
+	}
+
+	private static String[] supported(String[] configured, String[] available) {
+		List<String> availableList = Arrays.asList(available);
+		List<String> result = new ArrayList<String>();
+		for (String name : configured) {
+			if (availableList.contains(name)) {
+				result.add(name);
+			} else {
+				logger.warn(name + " is not supported by this JVM and is ignored");
+			}
+		}
+		return result.toArray(new String[result.size()]);
+	}
 }
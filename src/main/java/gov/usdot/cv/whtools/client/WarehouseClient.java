@@ -23,8 +23,24 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 
@@ -32,11 +48,15 @@ import org.apache.log4j.Logger;
 import org.eclipse.jetty.util.HttpCookieStore;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.SuspendToken;
+import org.eclipse.jetty.websocket.api.UpgradeException;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
 import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
 
 import gov.usdot.cv.whtools.client.CASClient.CASLoginException;
@@ -44,18 +64,74 @@ import gov.usdot.cv.whtools.client.config.ConfigException;
 import gov.usdot.cv.whtools.client.config.ConfigUtils;
 import gov.usdot.cv.whtools.client.config.WarehouseConfig;
 import gov.usdot.cv.whtools.client.handler.DepositHandler;
+import gov.usdot.cv.whtools.client.handler.QueryExecutor;
 import gov.usdot.cv.whtools.client.handler.RequestHandler;
+import gov.usdot.cv.whtools.client.handler.ResponseDispatcher;
 import gov.usdot.cv.whtools.client.handler.ResponseHandler;
+import gov.usdot.cv.whtools.client.metrics.Counter;
+import gov.usdot.cv.whtools.client.metrics.Gauge;
+import gov.usdot.cv.whtools.client.metrics.Histogram;
+import gov.usdot.cv.whtools.client.metrics.MetricsRegistry;
+import gov.usdot.cv.whtools.client.metrics.MetricsReporter;
 
 public class WarehouseClient {
 
 	private static final Logger logger = Logger.getLogger(WarehouseClient.class
 			.getName());
 	
+	private static final String QUERY_TAG = "QUERY:";
+	private static final String START_TAG = "START:";
+	private static final String STOP_TAG = "STOP:";
+	private static final String ERROR_TAG = "ERROR:";
+	private static final String SUBSCRIBE_TAG = "SUBSCRIBE:";
+	private static final long CONNECT_TIMEOUT_SECONDS = 30;
+	private static final String DEFLATE_EXTENSION = "permessage-deflate";
+	private static final int MAX_AFFINITY_KEYS = 4096;
+	
+	private static final Counter messagesReceived = MetricsRegistry.getInstance().counter("messagesReceived");
+	private static final Counter bytesReceived = MetricsRegistry.getInstance().counter("bytesReceived");
+	private static final Counter sendFailures = MetricsRegistry.getInstance().counter("sendFailures");
+	private static final Histogram sendLatency = MetricsRegistry.getInstance().histogram("sendLatency");
+	private static final Histogram asyncSendLatency = MetricsRegistry.getInstance().histogram("asyncSendLatency");
+	private static final Counter reconnects = MetricsRegistry.getInstance().counter("reconnects");
+	private static final Histogram connectionGap = MetricsRegistry.getInstance().histogram("connectionGap");
+	private static final Counter readPausedMillis = MetricsRegistry.getInstance().counter("readPausedMillis");
+	private static final Histogram readPause = MetricsRegistry.getInstance().histogram("readPause");
+	
+	/**
+	 * Notified of every ERROR: the Warehouse sends, on the WebSocket thread
+	 * before the message is queued for the ResponseHandler.
+	 */
+	public interface ErrorListener {
+		void onError(String sessionId, String message);
+	}
+	
 	private URI serverUri;
 	private org.eclipse.jetty.websocket.client.WebSocketClient client;
-	private WarehouseWebSocket socket;
-	private ResponseHandler handler;
+	private List<WarehouseWebSocket> sockets = new ArrayList<WarehouseWebSocket>();
+	private ConcurrentHashMap<String, WarehouseWebSocket> subscriptionAssignments = new ConcurrentHashMap<String, WarehouseWebSocket>();
+	// The last SUBSCRIBE: sent for each sticky key, sent again when its session reconnects
+	private ConcurrentHashMap<String, String> activeSubscriptions = new ConcurrentHashMap<String, String>();
+	// The session each affinity key is pinned to, least recently used first
+	private Map<String, WarehouseWebSocket> affinityAssignments = new LinkedHashMap<String, WarehouseWebSocket>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, WarehouseWebSocket> eldest) {
+			// A key is only forgotten once nothing can be in flight for it
+			return size() > MAX_AFFINITY_KEYS && eldest.getValue().inFlight.get() == 0;
+		}
+	};
+	private ResponseDispatcher dispatcher;
+	private HttpCookieStore cookieStore;
+	private String compressionOffer;
+	private List<ErrorListener> errorListeners = new CopyOnWriteArrayList<ErrorListener>();
+	private WarehouseConfig wsConfig;
+	private CASClient casClient;
+	private final Object loginLock = new Object();
+	private volatile String jSessionID;
+	private ScheduledExecutorService supervisor;
+	private volatile boolean closing;
 
 	public static WarehouseClient configure(WarehouseConfig wsConfig, ResponseHandler handler)
 			throws URISyntaxException, KeyManagementException,
@@ -63,7 +139,8 @@ public class WarehouseClient {
 			IOException, Exception {
 		
 		WarehouseClient wsClient = new WarehouseClient(wsConfig);
-		wsClient.handler = handler;
+		wsClient.dispatcher = new ResponseDispatcher(wsConfig, handler);
+		wsClient.dispatcher.start();
 				
 		return wsClient;
 	}
@@ -72,21 +149,39 @@ public class WarehouseClient {
 												URISyntaxException, KeyManagementException, KeyStoreException,
 												NoSuchAlgorithmException, CertificateException, IOException, Exception {
 
-		this.socket = new WarehouseWebSocket();
+		this.wsConfig = wsConfig;
+		this.jSessionID = wsConfig.jSessionID;
+		for (int i = 0; i < wsConfig.sessionPoolSize; i++) {
+			this.sockets.add(new WarehouseWebSocket("session-" + i));
+		}
+		this.supervisor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "WarehouseReconnect");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		MetricsRegistry.getInstance().gauge("sessionsOpen", new Gauge() {
+			public Number getValue() {
+				return getOpenSessionCount();
+			}
+		});
+		MetricsRegistry.getInstance().gauge("sessionsPaused", new Gauge() {
+			public Number getValue() {
+				int paused = 0;
+				for (WarehouseWebSocket socket : sockets) {
+					if (socket.suspendToken != null)
+						paused++;
+				}
+				return paused;
+			}
+		});
 		
 		this.serverUri = new URI(wsConfig.warehouseURL);
 		
 		if (wsConfig.warehouseURL.startsWith("wss")) {
-			SSLContext wsSSLContext;
-			if(wsConfig.keystoreFile != null && wsConfig.keystorePassword != null) {
-				wsSSLContext = SSLBuilder.buildSSLContext(wsConfig.keystoreFile, wsConfig.keystorePassword);
-			}
-			else {
-				wsSSLContext = SSLBuilder.buildSSLContext();
-			}
-			
-			SslContextFactory sslContextFactory = new SslContextFactory();
-			sslContextFactory.setSslContext(wsSSLContext);
+			SSLContext wsSSLContext = SSLBuilder.getSharedSSLContext(wsConfig);
+			SslContextFactory sslContextFactory = SSLBuilder.buildSslContextFactory(wsSSLContext, wsConfig);
 			
 			this.client = new org.eclipse.jetty.websocket.client.WebSocketClient(sslContextFactory);
 		}
@@ -94,48 +189,565 @@ public class WarehouseClient {
 			this.client = new org.eclipse.jetty.websocket.client.WebSocketClient();
 		}
 		
-		HttpCookieStore cookieStore = new HttpCookieStore();
+		this.cookieStore = new HttpCookieStore();
 		cookieStore.add(serverUri, new HttpCookie(WarehouseConfig.JSESSIONID_KEY, wsConfig.jSessionID));
 		client.setCookieStore(cookieStore);
 		
+		if (wsConfig.wsCompression) {
+			client.getExtensionFactory().register(DEFLATE_EXTENSION, CompressionStatsExtension.class);
+			this.compressionOffer = buildCompressionOffer(wsConfig);
+			MetricsRegistry.getInstance().gauge("compressionRatioIn", new Gauge() {
+				public Number getValue() {
+					return CompressionStatsExtension.getCompressionRatioIn();
+				}
+			});
+			MetricsRegistry.getInstance().gauge("compressionRatioOut", new Gauge() {
+				public Number getValue() {
+					return CompressionStatsExtension.getCompressionRatioOut();
+				}
+			});
+		}
+		
 		this.client.start();
 	}
 	
+	/**
+	 * Opens every session. A session that fails to open, or closes without
+	 * close() being called, is reconnected with exponential backoff.
+	 */
 	public void connect() throws IOException {
-		ClientUpgradeRequest request = new ClientUpgradeRequest();
-		client.connect(socket, serverUri, request);
+		for (WarehouseWebSocket socket : sockets) {
+			socket.open();
+		}
+	}
+	
+	/**
+	 * The CAS client used to log in again when the Warehouse rejects the
+	 * session ID on reconnect. Without it reconnects keep the current ID.
+	 */
+	public void setCASClient(CASClient casClient) {
+		this.casClient = casClient;
+	}
+	
+	/**
+	 * Replaces the session ID used for new connections, e.g. after a CAS renewal.
+	 * Sessions that are already open stay open.
+	 */
+	public void setSessionID(String jSessionID) {
+		this.jSessionID = jSessionID;
+		cookieStore.removeAll();
+		cookieStore.add(serverUri, new HttpCookie(WarehouseConfig.JSESSIONID_KEY, jSessionID));
 	}
 	
 	public void send(String message) throws IOException {
-		socket.send(message);
+		while (!selectSocket().send(message, null, false)) {
+			// Reserved while selecting, select another session
+		}
+	}
+	
+	/**
+	 * Sends a request that must always use the same session, e.g. a subscription
+	 * identified by its request file. The first send assigns the session with the
+	 * fewest subscriptions; later sends with the same key reuse it.
+	 */
+	public void send(String message, String stickyKey) throws IOException {
+		if (message.startsWith(SUBSCRIBE_TAG)) {
+			activeSubscriptions.put(stickyKey, message);
+		}
+		String subscriptionKey = message.startsWith(SUBSCRIBE_TAG) ? stickyKey : null;
+		while (true) {
+			WarehouseWebSocket socket = subscriptionAssignments.get(stickyKey);
+			if (socket == null || socket.reserved) {
+				synchronized (subscriptionAssignments) {
+					socket = subscriptionAssignments.get(stickyKey);
+					// A session is only reserved while none of its subscriptions run, so the key can move
+					if (socket == null || socket.reserved) {
+						socket = leastSubscribedSocket();
+						subscriptionAssignments.put(stickyKey, socket);
+						logger.info("Assigned " + stickyKey + " to " + socket.id);
+					}
+				}
+			}
+			if (socket.send(message, subscriptionKey, false))
+				return;
+		}
+	}
+	
+	public void sendAsync(String message, WriteCallback callback) throws IOException {
+		while (!selectSocket().sendAsync(message, callback)) {
+			// Reserved while selecting, select another session
+		}
+	}
+	
+	/**
+	 * Sends all messages with the same affinity key on the same open session,
+	 * so they reach the Warehouse in the order they were sent, e.g. the records
+	 * of one deposit file. The first send pins the key to the least loaded
+	 * session; it only moves once that session is closed or reserved and
+	 * nothing sent on it is still in flight.
+	 */
+	public void sendAsync(String message, String affinityKey, WriteCallback callback) throws IOException {
+		if (affinityKey == null || sockets.size() == 1) {
+			sendAsync(message, callback);
+			return;
+		}
+		while (!affinitySocket(affinityKey).sendAsync(message, callback)) {
+			// Reserved while selecting, the key moves to another session
+		}
+	}
+	
+	private WarehouseWebSocket affinitySocket(String affinityKey) throws IOException {
+		synchronized (affinityAssignments) {
+			WarehouseWebSocket socket = affinityAssignments.get(affinityKey);
+			// A session is only reserved while nothing is in flight on it, so the key can move
+			if (socket != null && !socket.reserved) {
+				if (socket.isOpen())
+					return socket;
+				if (socket.inFlight.get() > 0) {
+					// A send on another session could overtake the ones still failing on this one
+					throw new IOException("Message failed to send. Session " + socket.id + " is closing.");
+				}
+			}
+			WarehouseWebSocket selected = selectSocket();
+			affinityAssignments.put(affinityKey, selected);
+			if (socket != null) {
+				logger.info("Moved " + affinityKey + " from " + socket.id + " to " + selected.id);
+			}
+			return selected;
+		}
+	}
+	
+	/**
+	 * Sends on the given session, used together with reserveSession().
+	 */
+	public void sendToSession(String sessionId, String message) throws IOException {
+		getSocket(sessionId).send(message, null, true);
+	}
+	
+	/**
+	 * Takes an open session out of the load balancing so that all responses it
+	 * receives belong to the caller's requests, e.g. the pages of a query.
+	 * Only a session with no subscription, query or send outstanding is
+	 * reserved, and one open session always stays unreserved for everything
+	 * else. Returns null if no session can be reserved.
+	 */
+	public synchronized String reserveSession() {
+		WarehouseWebSocket selected = null;
+		int unreserved = 0;
+		for (WarehouseWebSocket socket : sockets) {
+			if (!socket.isOpen() || socket.reserved)
+				continue;
+			unreserved++;
+			if (selected == null && socket.isIdle())
+				selected = socket;
+		}
+		if (selected == null || unreserved < 2)
+			return null;
+		selected.reserved = true;
+		// A send that selected the session before it was reserved may still be starting
+		if (!selected.isIdle()) {
+			selected.reserved = false;
+			return null;
+		}
+		return selected.id;
+	}
+	
+	public synchronized void releaseSession(String sessionId) {
+		getSocket(sessionId).reserved = false;
+	}
+	
+	/**
+	 * Closes the session and lets it reconnect, e.g. to abandon a response it
+	 * is still streaming. A reserved session stays reserved.
+	 */
+	public void reopenSession(String sessionId) {
+		getSocket(sessionId).close();
+	}
+	
+	public void addErrorListener(ErrorListener listener) {
+		errorListeners.add(listener);
+	}
+	
+	public void removeErrorListener(ErrorListener listener) {
+		errorListeners.remove(listener);
+	}
+	
+	/**
+	 * True while at least one session is open.
+	 */
+	public boolean isConnected() {
+		for (WarehouseWebSocket socket : sockets) {
+			if (socket.isOpen())
+				return true;
+		}
+		return false;
+	}
+	
+	public int getSessionCount() {
+		return sockets.size();
+	}
+	
+	public int getOpenSessionCount() {
+		int open = 0;
+		for (WarehouseWebSocket socket : sockets) {
+			if (socket.isOpen())
+				open++;
+		}
+		return open;
 	}
 	
 	public void close() throws Exception {
-		socket.close();
+		closing = true;
+		supervisor.shutdownNow();
+		for (WarehouseWebSocket socket : sockets) {
+			socket.close();
+		}
+		if (compressionOffer != null) {
+			logger.info("WebSocket compression " + CompressionStatsExtension.describe());
+		}
 		client.stop();
+		dispatcher.stop();
+	}
+	
+	/**
+	 * The permessage-deflate offer (RFC 7692). Jetty always compresses with a
+	 * 15 bit window, so only the server's window size can be limited.
+	 */
+	private static String buildCompressionOffer(WarehouseConfig wsConfig) {
+		StringBuilder offer = new StringBuilder(DEFLATE_EXTENSION);
+		if (wsConfig.wsCompressionClientNoContextTakeover)
+			offer.append("; client_no_context_takeover");
+		if (wsConfig.wsCompressionServerNoContextTakeover)
+			offer.append("; server_no_context_takeover");
+		if (wsConfig.wsCompressionServerMaxWindowBits >= 8 && wsConfig.wsCompressionServerMaxWindowBits <= 15)
+			offer.append("; server_max_window_bits=").append(wsConfig.wsCompressionServerMaxWindowBits);
+		return offer.toString();
+	}
+	
+	private WarehouseWebSocket selectSocket() throws IOException {
+		WarehouseWebSocket selected = null;
+		int selectedLoad = Integer.MAX_VALUE;
+		for (WarehouseWebSocket socket : sockets) {
+			// Everything a reserved session receives goes to the reserving caller
+			if (!socket.isOpen() || socket.reserved)
+				continue;
+			int load = socket.getLoad();
+			if (load < selectedLoad) {
+				selected = socket;
+				selectedLoad = load;
+			}
+		}
+		if (selected == null) {
+			throw new IOException("Message failed to send. No unreserved session is open.");
+		}
+		return selected;
+	}
+	
+	private WarehouseWebSocket getSocket(String sessionId) {
+		for (WarehouseWebSocket socket : sockets) {
+			if (socket.id.equals(sessionId))
+				return socket;
+		}
+		throw new IllegalArgumentException("Unknown session " + sessionId);
+	}
+	
+	/**
+	 * Logs in to CAS again after the Warehouse rejected the given session ID,
+	 * unless another session already did.
+	 */
+	private void renewSession(String rejectedSessionID) {
+		synchronized (loginLock) {
+			if (rejectedSessionID != null && !rejectedSessionID.equals(jSessionID))
+				return;
+			if (casClient == null) {
+				logger.warn("Warehouse rejected the session ID and no CAS client is set to log in again");
+				return;
+			}
+			try {
+				String sessionID = casClient.login();
+				wsConfig.jSessionID = sessionID;
+				setSessionID(sessionID);
+			} catch (Exception e) {
+				logger.error("CAS login after a rejected session ID failed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Exponential backoff from reconnectInitialMillis up to reconnectMaxMillis,
+	 * with a random delay between half and all of it so sessions dropped at
+	 * the same time do not reconnect at the same time.
+	 */
+	private long backoffMillis(int attempt) {
+		long delay = wsConfig.reconnectInitialMillis << Math.min(attempt, 20);
+		if (delay <= 0 || delay > wsConfig.reconnectMaxMillis)
+			delay = wsConfig.reconnectMaxMillis;
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+	
+	private static boolean isSessionRejected(Throwable t) {
+		for (; t != null; t = t.getCause()) {
+			if (t instanceof UpgradeException) {
+				int status = ((UpgradeException) t).getResponseStatusCode();
+				// An expired session is refused, or redirected to the CAS login
+				return status == 401 || status == 403 || status == 302;
+			}
+		}
+		return false;
+	}
+	
+	private WarehouseWebSocket leastSubscribedSocket() throws IOException {
+		WarehouseWebSocket selected = null;
+		for (WarehouseWebSocket socket : sockets) {
+			if (!socket.reserved && (selected == null || socket.subscriptionKeys.size() < selected.subscriptionKeys.size())) {
+				selected = socket;
+			}
+		}
+		if (selected == null) {
+			throw new IOException("Message failed to send. Every session is reserved.");
+		}
+		return selected;
+	}
+	
+	/**
+	 * A request sent on a session whose response stream has not ended yet.
+	 * The Warehouse answers the requests of a session one stream at a time,
+	 * so each START: belongs to the oldest request still waiting for one.
+	 */
+	private static class OpenRequest {
+		private final boolean query;
+		// The sticky key of a subscription, null for queries and unkeyed subscriptions
+		private final String subscriptionKey;
+		
+		private OpenRequest(boolean query, String subscriptionKey) {
+			this.query = query;
+			this.subscriptionKey = subscriptionKey;
+		}
 	}
 	
 	@WebSocket(maxIdleTime=0)
 	public class WarehouseWebSocket {
-		private Session session;
+		private final String id;
+		private volatile Session session;
+		// Sends not yet completed, queries awaiting their STOP: and running sticky subscriptions
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicInteger openQueries = new AtomicInteger();
+		private final Set<String> subscriptionKeys = ConcurrentHashMap.newKeySet();
+		// Requests waiting for their START:, and those whose stream has started, innermost first
+		private final ConcurrentLinkedDeque<OpenRequest> awaitingStart = new ConcurrentLinkedDeque<OpenRequest>();
+		private final ConcurrentLinkedDeque<OpenRequest> streaming = new ConcurrentLinkedDeque<OpenRequest>();
+		private volatile boolean reserved;
+		// When the session was lost, 0 while open or before it first opened
+		private volatile long disconnectedAt;
+		private int attempts;
+		private final AtomicBoolean reconnectScheduled = new AtomicBoolean();
+		// Set while reading is suspended because the response queue is full
+		private volatile SuspendToken suspendToken;
+		private long pausedAt;
+		private final Runnable resumeReading = new Runnable() {
+			public void run() {
+				resumeReading();
+			}
+		};
+		
+		public WarehouseWebSocket(String id) {
+			this.id = id;
+		}
+		
+		private void open() throws IOException {
+			ClientUpgradeRequest request = new ClientUpgradeRequest();
+			if (compressionOffer != null) {
+				request.addExtensions(compressionOffer);
+			}
+			final String sessionID = jSessionID;
+			final Future<Session> future = client.connect(this, serverUri, request);
+			supervisor.execute(new Runnable() {
+				public void run() {
+					awaitOpen(future, sessionID);
+				}
+			});
+		}
+		
+		private void awaitOpen(Future<Session> future, String sessionID) {
+			try {
+				future.get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				logger.warn("Connection " + id + " did not open within " + CONNECT_TIMEOUT_SECONDS + " seconds");
+				scheduleReconnect();
+			} catch (ExecutionException e) {
+				logger.warn("Connection " + id + " failed to open: " + e.getCause());
+				if (isSessionRejected(e.getCause())) {
+					renewSession(sessionID);
+				}
+				scheduleReconnect();
+			}
+		}
+		
+		private void scheduleReconnect() {
+			if (closing || !reconnectScheduled.compareAndSet(false, true))
+				return;
+			long delay = backoffMillis(attempts++);
+			logger.info("Reconnecting " + id + " in " + delay + " ms (attempt " + attempts + ")");
+			try {
+				supervisor.schedule(new Runnable() {
+					public void run() {
+						reconnectScheduled.set(false);
+						try {
+							open();
+						} catch (IOException e) {
+							logger.warn("Connection " + id + " failed to open: " + e);
+							scheduleReconnect();
+						}
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			} catch (RuntimeException e) {
+				// The supervisor was shut down by close()
+				reconnectScheduled.set(false);
+			}
+		}
+		
+		private void pauseReading() {
+			Session current = session;
+			if (current == null)
+				return;
+			synchronized (this) {
+				if (suspendToken != null)
+					return;
+				pausedAt = System.nanoTime();
+				suspendToken = current.suspend();
+			}
+			dispatcher.resumeWhenDrained(id, resumeReading);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Connection " + id + " paused reading, the response queue is full");
+			}
+		}
+		
+		private void resumeReading() {
+			SuspendToken token;
+			synchronized (this) {
+				token = suspendToken;
+				if (token == null)
+					return;
+				suspendToken = null;
+				recordPause();
+			}
+			token.resume();
+			if (logger.isDebugEnabled()) {
+				logger.debug("Connection " + id + " resumed reading");
+			}
+		}
+		
+		private void recordPause() {
+			long paused = System.nanoTime() - pausedAt;
+			readPause.record(paused);
+			readPausedMillis.add(TimeUnit.NANOSECONDS.toMillis(paused));
+		}
+		
+		/**
+		 * Sends the subscriptions assigned to this session again after a reconnect.
+		 */
+		private void resubscribe() {
+			int resent = 0;
+			// Subscriptions that ended with a STOP: before the session was lost are not resent
+			for (String key : subscriptionKeys) {
+				String message = activeSubscriptions.get(key);
+				if (subscriptionAssignments.get(key) != this || message == null)
+					continue;
+				try {
+					send(message, key, false);
+					resent++;
+				} catch (IOException e) {
+					logger.error("Failed to resend subscription " + key + " on " + id, e);
+				}
+			}
+			if (resent > 0) {
+				logger.info("Resent " + resent + " subscription(s) on " + id);
+			}
+		}
 		
 		@OnWebSocketConnect
 		public void onOpen(Session session) {
 			this.session = session;
 			this.session.setIdleTimeout(0);		// Don't timeout
 			
-			logger.info("Connection opened to " + serverUri.toString());
+			logger.info("Connection " + id + " opened to " + serverUri.toString());
+			attempts = 0;
+			long lostAt = disconnectedAt;
+			if (lostAt != 0) {
+				long gap = System.nanoTime() - lostAt;
+				disconnectedAt = 0;
+				reconnects.inc();
+				connectionGap.record(gap);
+				logger.info(String.format("Connection %s restored after a %.1f s gap", id, gap / 1e9));
+				supervisor.execute(new Runnable() {
+					public void run() {
+						resubscribe();
+					}
+				});
+			}
+			if (compressionOffer != null) {
+				boolean negotiated = false;
+				for (ExtensionConfig extension : session.getUpgradeResponse().getExtensions()) {
+					negotiated |= DEFLATE_EXTENSION.equals(extension.getName());
+				}
+				if (negotiated) {
+					logger.info("Connection " + id + " negotiated " + DEFLATE_EXTENSION);
+				} else {
+					logger.warn("Connection " + id + " is uncompressed, the server declined " + DEFLATE_EXTENSION);
+				}
+			}
 		}
 
 		@OnWebSocketClose
 		public void onClose(int code, String reason) {
-			logger.info("Connection to " + serverUri.toString() + " closed.");
+			logger.info("Connection " + id + " to " + serverUri.toString() + " closed.");
+			session = null;
+			// Nothing sent on the closed session is answered any more, its subscriptions are resent on reconnect
+			openQueries.set(0);
+			awaitingStart.clear();
+			streaming.clear();
+			synchronized (this) {
+				// A suspended session that closes has nothing left to resume
+				if (suspendToken != null) {
+					suspendToken = null;
+					recordPause();
+				}
+			}
+			if (!closing) {
+				if (disconnectedAt == 0)
+					disconnectedAt = System.nanoTime();
+				logger.warn("Connection " + id + " lost (" + code + " " + reason + ")");
+				scheduleReconnect();
+			}
+			if (compressionOffer != null) {
+				logger.info("WebSocket compression " + CompressionStatsExtension.describe());
+			}
 		}
 
 		@OnWebSocketMessage
 		public void onMessage(String message) {
-			logger.debug("Received message: " + message);
-			handler.handleMessage(message);
+			messagesReceived.inc();
+			bytesReceived.add(message.length());
+			if (logger.isDebugEnabled()) {
+				logger.debug("Received message on " + id + ": " + message);
+			}
+			if (message.startsWith(START_TAG)) {
+				startStream();
+			} else if (message.startsWith(STOP_TAG)) {
+				endStream();
+			}
+			if (message.startsWith(ERROR_TAG)) {
+				for (ErrorListener listener : errorListeners) {
+					listener.onError(id, message);
+				}
+			}
+			dispatcher.dispatch(id, message);
+			if (suspendToken == null && dispatcher.shouldPause(id)) {
+				pauseReading();
+			}
 		}
 
 		@OnWebSocketError
@@ -144,7 +756,54 @@ public class WarehouseClient {
 			logger.error("Error:", t);
 		}
 		
-		public void send(String message) throws IOException {
+		private void startStream() {
+			OpenRequest request = awaitingStart.poll();
+			if (request == null)
+				return;
+			streaming.push(request);
+			if (request.subscriptionKey != null) {
+				// A resent subscription replaces the one whose STOP: may have removed the key
+				subscriptionKeys.add(request.subscriptionKey);
+			}
+		}
+		
+		/**
+		 * Called on STOP:, ends the query or subscription whose stream it closes.
+		 */
+		private void endStream() {
+			OpenRequest request = streaming.poll();
+			if (request == null)
+				return;
+			if (request.query) {
+				openQueries.decrementAndGet();
+			} else if (request.subscriptionKey != null) {
+				subscriptionKeys.remove(request.subscriptionKey);
+			}
+		}
+		
+		/**
+		 * Sends the message, counting a QUERY: as open until its STOP: and a
+		 * SUBSCRIBE: with a subscription key as running until its STOP:.
+		 * Returns false without sending if the session has been reserved and
+		 * this is not a send of the reserving caller.
+		 */
+		private boolean send(String message, String subscriptionKey, boolean reservation) throws IOException {
+			if (!beginSend(reservation))
+				return false;
+			OpenRequest request = null;
+			boolean keyAdded = false;
+			if (message.startsWith(QUERY_TAG)) {
+				request = new OpenRequest(true, null);
+				openQueries.incrementAndGet();
+			} else if (message.startsWith(SUBSCRIBE_TAG)) {
+				request = new OpenRequest(false, subscriptionKey);
+				keyAdded = subscriptionKey != null && subscriptionKeys.add(subscriptionKey);
+			}
+			if (request != null) {
+				// Queued before sending, the START: may arrive before the send completes
+				awaitingStart.add(request);
+			}
+			boolean sent = false;
 			try {
 				// If messages are attempted to be sent by multiple threads(for example, multiple clients)
 				// to the same RemoteEndpoint, it can lead to blocking and throws the error:
@@ -152,11 +811,84 @@ public class WarehouseClient {
 				// To alleviate this, use asynchronous, non-blocking methods that require us to check
 				// if the send was successful.
 				// https://bugs.eclipse.org/bugs/show_bug.cgi?id=474488
+				long start = System.nanoTime();
 				Future<Void> sendFuture = session.getRemote().sendStringByFuture(message);
 				sendFuture.get(3, TimeUnit.SECONDS);	// Wait for completion
+				sendLatency.recordSince(start);
+				sent = true;
 			} catch (Exception e) {
+				sendFailures.inc();
 				throw new IOException("Message failed to send.", e);
+			} finally {
+				inFlight.decrementAndGet();
+				if (!sent && request != null && awaitingStart.removeLastOccurrence(request)) {
+					if (request.query) {
+						openQueries.decrementAndGet();
+					} else if (keyAdded) {
+						subscriptionKeys.remove(request.subscriptionKey);
+					}
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Returns false without sending if the session has been reserved.
+		 */
+		private boolean sendAsync(String message, final WriteCallback callback) throws IOException {
+			Session currentSession = session;
+			if (currentSession == null || !currentSession.isOpen()) {
+				throw new IOException("Message failed to send. Session is not open.");
+			}
+			if (!beginSend(false))
+				return false;
+			final long start = System.nanoTime();
+			// Completion is reported through the callback on a Jetty thread, the caller never blocks
+			currentSession.getRemote().sendString(message, new WriteCallback() {
+				public void writeSuccess() {
+					inFlight.decrementAndGet();
+					asyncSendLatency.recordSince(start);
+					if (callback != null) callback.writeSuccess();
+				}
+				
+				public void writeFailed(Throwable t) {
+					inFlight.decrementAndGet();
+					sendFailures.inc();
+					if (callback != null) callback.writeFailed(t);
+				}
+			});
+			return true;
+		}
+		
+		/**
+		 * Counts a send in flight. Together with reserveSession() checking for
+		 * sends in flight after reserving, either the send sees the reservation
+		 * or the reservation sees the send.
+		 */
+		private boolean beginSend(boolean reservation) {
+			inFlight.incrementAndGet();
+			if (reserved && !reservation) {
+				inFlight.decrementAndGet();
+				return false;
 			}
+			return true;
+		}
+		
+		/**
+		 * True if no response of anything sent on the session is outstanding.
+		 */
+		private boolean isIdle() {
+			return inFlight.get() == 0 && openQueries.get() == 0 && subscriptionKeys.isEmpty()
+					&& awaitingStart.isEmpty() && streaming.isEmpty();
+		}
+		
+		public boolean isOpen() {
+			Session currentSession = session;
+			return currentSession != null && currentSession.isOpen();
+		}
+		
+		public int getLoad() {
+			return inFlight.get() + openQueries.get() + subscriptionKeys.size();
 		}
 		
 		public void close() {
@@ -182,18 +914,6 @@ public class WarehouseClient {
 		wsConfig.postLoadCalculateValues();
 		logger.info(wsConfig);
 		
-		CASClient casClient = CASClient.configure(wsConfig);
-		String jSessionID = casClient.login();
-		wsConfig.jSessionID = jSessionID;
-		
-		ResponseHandler handler = new ResponseHandler(wsConfig);
-		WarehouseClient wsClient = WarehouseClient.configure(wsConfig, handler);
-		logger.info("Opening WebSocket to " + wsConfig.warehouseURL);
-		wsClient.connect();
-
-		RequestHandler watcher = new RequestHandler(wsConfig.requestDir, wsClient);
-		watcher.start();
-		
 		StringBuilder depositConfigErrors = new StringBuilder();
 		if (wsConfig.systemDepositName == null)
 			depositConfigErrors.append("systemDepositName is required, ");
@@ -205,7 +925,53 @@ public class WarehouseClient {
 			logger.error("Configuration errors: " + depositConfigErrors.toString());
 			System.exit(-1);
 		}
-		DepositHandler depositHandler = new DepositHandler(wsConfig.depositFileDir, wsClient, wsConfig);
+		
+		MetricsRegistry.getInstance().registerMBean();
+		final MetricsReporter metricsReporter = new MetricsReporter(MetricsRegistry.getInstance(), wsConfig.metricsLogSeconds);
+		metricsReporter.start();
+		
+		final CASClient casClient = CASClient.configure(wsConfig);
+		String jSessionID = casClient.login();
+		wsConfig.jSessionID = jSessionID;
+		
+		final ResponseHandler handler = new ResponseHandler(wsConfig);
+		final WarehouseClient wsClient = WarehouseClient.configure(wsConfig, handler);
+		final WarehouseConfig config = wsConfig;
+		wsClient.setCASClient(casClient);
+		casClient.startRenewal(new CASClient.SessionListener() {
+			public void onSessionRenewed(String sessionID) {
+				config.jSessionID = sessionID;
+				wsClient.setSessionID(sessionID);
+			}
+		});
+		QueryExecutor executor = null;
+		if (QueryExecutor.isEnabled(wsConfig)) {
+			executor = new QueryExecutor(wsConfig, wsClient, handler);
+		}
+		final QueryExecutor queryExecutor = executor;
+		final RequestHandler watcher = new RequestHandler(wsConfig.requestDir, wsClient, wsConfig, queryExecutor);
+		final DepositHandler depositHandler = new DepositHandler(wsConfig.depositFileDir, wsClient, wsConfig);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				// Deposits still queued need the sessions, and the responses drained on close need the sinks
+				depositHandler.stop();
+				watcher.stop();
+				if (queryExecutor != null)
+					queryExecutor.close();
+				metricsReporter.stop();
+				casClient.close();
+				try {
+					wsClient.close();
+				} catch (Exception e) {
+					logger.warn("Failed to close WebSocket client", e);
+				}
+				handler.close();
+			}
+		}, "ShutdownHook"));
+		logger.info("Opening WebSocket to " + wsConfig.warehouseURL);
+		wsClient.connect();
+
+		watcher.start();
 		depositHandler.start();
 
 		while (true) {
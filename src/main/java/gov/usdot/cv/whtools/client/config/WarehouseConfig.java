@@ -12,51 +12,351 @@
  */
 package gov.usdot.cv.whtools.client.config;
 
+import java.util.Arrays;
 
 public class WarehouseConfig {
 
 	public static final String DEFAULT_CONFIG_FILE = "config/whconfig.json";
 	public static final String DEFAULT_OUTPUT_DIR = "responses";
 	public static final String JSESSIONID_KEY = "JSESSIONID";
+	public static final int DEFAULT_DEPOSIT_WINDOW_SIZE = 32;
+	public static final int DEFAULT_DEPOSIT_WORKERS = 4;
+	public static final int DEFAULT_DEPOSIT_QUEUE_CAPACITY = 1024;
+	public static final String DEFAULT_DEPOSIT_CHECKPOINT_DIR = "checkpoints";
+	public static final int DEFAULT_DEPOSIT_CHECKPOINT_INTERVAL = 1000;
+	public static final int DEFAULT_DEPOSIT_DEDUP_MAX_RECORDS = 1000000;
+	public static final String DEFAULT_DEPOSIT_SPOOL_DIR = "deposit-spool";
+	public static final long DEFAULT_DEPOSIT_SPOOL_MAX_BYTES = 1024L * 1024 * 1024;
+	public static final long DEFAULT_DEPOSIT_SPOOL_SEGMENT_BYTES = 64L * 1024 * 1024;
+	public static final int DEFAULT_DEPOSIT_RATE_MIN = 10;
+	public static final int DEFAULT_DEPOSIT_RATE_MAX = 5000;
+	public static final int DEFAULT_DEPOSIT_RATE_STEP = 50;
+	public static final int DEFAULT_DEPOSIT_RATE_LATENCY_MILLIS = 1000;
+	public static final int DEFAULT_SESSION_POOL_SIZE = 1;
+	public static final long DEFAULT_RECONNECT_INITIAL_MILLIS = 1000;
+	public static final long DEFAULT_RECONNECT_MAX_MILLIS = 60000;
+	public static final int DEFAULT_CAS_MAX_CONNECTIONS = 4;
+	public static final String[] DEFAULT_TLS_PROTOCOLS = { "TLSv1.3", "TLSv1.2" };
+	public static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 64;
+	public static final int DEFAULT_TLS_SESSION_TIMEOUT_SECONDS = 86400;
+	public static final int DEFAULT_CAS_TGT_LIFETIME_MINUTES = 120;
+	public static final int DEFAULT_CAS_RENEW_MINUTES = 20;
+	public static final int DEFAULT_RESPONSE_QUEUE_CAPACITY = 8192;
+	public static final int DEFAULT_RESPONSE_WRITER_THREADS = 1;
+	public static final String DEFAULT_RESPONSE_OVERFLOW_POLICY = "block";
+	public static final int DEFAULT_RESPONSE_QUEUE_HIGH_WATERMARK = 75;
+	public static final int DEFAULT_RESPONSE_QUEUE_LOW_WATERMARK = 25;
+	public static final String DEFAULT_RESPONSE_SPILL_DIR = "spill";
+	public static final String DEFAULT_BINARY_OUTPUT_MODE = "files";
+	public static final long DEFAULT_SEGMENT_MAX_BYTES = 256L * 1024 * 1024;
+	public static final int DEFAULT_TEXT_FLUSH_MESSAGES = 1000;
+	public static final long DEFAULT_TEXT_FLUSH_MILLIS = 1000;
+	public static final long DEFAULT_TEXT_ROLL_BYTES = 256L * 1024 * 1024;
+	public static final String DEFAULT_TEXT_COMPRESSION = "none";
+	public static final int DEFAULT_SINK_BATCH_SIZE = 256;
+	public static final String DEFAULT_WATCH_MODE = "events";
+	public static final long DEFAULT_WATCH_POLL_MILLIS = 2000;
+	public static final long DEFAULT_WATCH_DEBOUNCE_MILLIS = 500;
+	public static final int DEFAULT_QUERY_PARALLELISM = 4;
+	public static final int DEFAULT_QUERY_PAGE_TIMEOUT_SECONDS = 300;
+	public static final String DEFAULT_QUERY_CACHE_DIR = "query-cache";
+	public static final int DEFAULT_QUERY_CACHE_TTL_MINUTES = 60;
+	public static final int DEFAULT_QUERY_CACHE_IMMUTABLE_MINUTES = 1440;
 	
 	public String warehouseURL;
 	public String httpWarehouseURL;
 	public String keystoreFile;
 	public String keystorePassword;
+	public String[] tlsProtocols;
+	public String[] tlsCipherSuites;
+	public int tlsSessionCacheSize;
+	public int tlsSessionTimeoutSeconds;
 	public String casURL;
 	public String casUserName;
 	public String casPassword;
+	public int casMaxConnections;
+	public int casTgtLifetimeMinutes;
+	public int casRenewMinutes;
 	public String jSessionID;
+	public int sessionPoolSize;
+	public long reconnectInitialMillis;
+	public long reconnectMaxMillis;
+	public boolean wsCompression;
+	public boolean wsCompressionClientNoContextTakeover;
+	public boolean wsCompressionServerNoContextTakeover;
+	public int wsCompressionServerMaxWindowBits;
 	public String requestDir;
+	public String watchMode;
+	public long watchPollMillis;
+	public long watchDebounceMillis;
+	public int queryPageSize;
+	public int queryTimeSliceMinutes;
+	public int queryParallelism;
+	public int queryPageTimeoutSeconds;
+	public String queryCacheDir;
+	public long queryCacheMaxBytes;
+	public int queryCacheTtlMinutes;
+	public int queryCacheImmutableMinutes;
 	public boolean logMessages;
 	public boolean writeToDisk;
 	public boolean binaryFiles;
+	public String binaryOutputMode;
+	public long segmentMaxBytes;
+	public int textFlushMessages;
+	// Negative until set, 0 disables time based flushing
+	public long textFlushMillis = -1;
+	public boolean textFsync;
+	public long textRollBytes;
+	public int textRollMinutes;
+	public String textCompression;
+	public String[] fullRecordFields;
 	public String responseDir;
+	public int responseQueueCapacity;
+	public int responseWriterThreads;
+	public String responseOverflowPolicy;
+	public int responseQueueHighWatermark;
+	public int responseQueueLowWatermark;
+	public String responseSpillDir;
+	public String[] messageSinks;
+	public int sinkBatchSize;
 	public String systemDepositName;
 	public String encodeType;
 	public String depositFileDir;
 	public int depositDelay;
+	public int depositWindowSize;
+	public int depositWorkers;
+	public int depositQueueCapacity;
+	public String depositCheckpointDir;
+	public int depositCheckpointInterval;
+	public boolean depositTailMode;
+	public boolean depositDedup;
+	public int depositDedupMaxRecords;
+	public boolean depositSpool;
+	public String depositSpoolDir;
+	public long depositSpoolMaxBytes;
+	public long depositSpoolSegmentBytes;
+	public boolean depositRateControl;
+	public int depositRateMin;
+	public int depositRateMax;
+	public int depositRateStep;
+	public int depositRateLatencyMillis;
+	public int metricsLogSeconds;
     	
 	@Override
 	public String toString() {
 		return "WarehouseConfig [warehouseURL=" + warehouseURL
 				+ ", httpWarehouseURL=" + httpWarehouseURL + ", keystoreFile="
 				+ keystoreFile + ", keystorePassword=" + keystorePassword
+				+ ", tlsProtocols=" + Arrays.toString(tlsProtocols)
+				+ ", tlsCipherSuites=" + Arrays.toString(tlsCipherSuites)
+				+ ", tlsSessionCacheSize=" + tlsSessionCacheSize
+				+ ", tlsSessionTimeoutSeconds=" + tlsSessionTimeoutSeconds
 				+ ", casURL=" + casURL + ", casUserName=" + casUserName
-				+ ", casPassword=" + casPassword + ", jSessionID=" + jSessionID
-				+ ", requestDir=" + requestDir + ", logMessages=" + logMessages
+				+ ", casPassword=" + casPassword
+				+ ", casMaxConnections=" + casMaxConnections
+				+ ", casTgtLifetimeMinutes=" + casTgtLifetimeMinutes
+				+ ", casRenewMinutes=" + casRenewMinutes + ", jSessionID=" + jSessionID
+				+ ", sessionPoolSize=" + sessionPoolSize
+				+ ", reconnectInitialMillis=" + reconnectInitialMillis
+				+ ", reconnectMaxMillis=" + reconnectMaxMillis
+				+ ", wsCompression=" + wsCompression
+				+ ", wsCompressionClientNoContextTakeover=" + wsCompressionClientNoContextTakeover
+				+ ", wsCompressionServerNoContextTakeover=" + wsCompressionServerNoContextTakeover
+				+ ", wsCompressionServerMaxWindowBits=" + wsCompressionServerMaxWindowBits
+				+ ", requestDir=" + requestDir + ", watchMode=" + watchMode
+				+ ", watchPollMillis=" + watchPollMillis
+				+ ", watchDebounceMillis=" + watchDebounceMillis
+				+ ", queryPageSize=" + queryPageSize
+				+ ", queryTimeSliceMinutes=" + queryTimeSliceMinutes
+				+ ", queryParallelism=" + queryParallelism
+				+ ", queryPageTimeoutSeconds=" + queryPageTimeoutSeconds
+				+ ", queryCacheDir=" + queryCacheDir
+				+ ", queryCacheMaxBytes=" + queryCacheMaxBytes
+				+ ", queryCacheTtlMinutes=" + queryCacheTtlMinutes
+				+ ", queryCacheImmutableMinutes=" + queryCacheImmutableMinutes
+				+ ", logMessages=" + logMessages
 				+ ", writeToDisk=" + writeToDisk + ", binaryFiles="
-				+ binaryFiles + ", responseDir=" + responseDir
+				+ binaryFiles + ", binaryOutputMode=" + binaryOutputMode
+				+ ", segmentMaxBytes=" + segmentMaxBytes
+				+ ", textFlushMessages=" + textFlushMessages
+				+ ", textFlushMillis=" + textFlushMillis + ", textFsync="
+				+ textFsync + ", textRollBytes=" + textRollBytes
+				+ ", textRollMinutes=" + textRollMinutes
+				+ ", textCompression=" + textCompression
+				+ ", fullRecordFields=" + Arrays.toString(fullRecordFields)
+				+ ", responseDir=" + responseDir
+				+ ", responseQueueCapacity=" + responseQueueCapacity
+				+ ", responseWriterThreads=" + responseWriterThreads
+				+ ", responseOverflowPolicy=" + responseOverflowPolicy
+				+ ", responseQueueHighWatermark=" + responseQueueHighWatermark
+				+ ", responseQueueLowWatermark=" + responseQueueLowWatermark
+				+ ", responseSpillDir=" + responseSpillDir
+				+ ", messageSinks=" + Arrays.toString(messageSinks)
+				+ ", sinkBatchSize=" + sinkBatchSize
 				+ ", systemDepositName=" + systemDepositName + ", encodeType="
 				+ encodeType + ", depositFileDir=" + depositFileDir
-				+ ", depositDelay=" + depositDelay + "]";
+				+ ", depositDelay=" + depositDelay + ", depositWindowSize="
+				+ depositWindowSize + ", depositWorkers=" + depositWorkers
+				+ ", depositQueueCapacity="
+				+ depositQueueCapacity + ", depositCheckpointDir="
+				+ depositCheckpointDir + ", depositCheckpointInterval="
+				+ depositCheckpointInterval + ", depositTailMode="
+				+ depositTailMode + ", depositDedup=" + depositDedup
+				+ ", depositDedupMaxRecords=" + depositDedupMaxRecords
+				+ ", depositSpool=" + depositSpool
+				+ ", depositSpoolDir=" + depositSpoolDir
+				+ ", depositSpoolMaxBytes=" + depositSpoolMaxBytes
+				+ ", depositSpoolSegmentBytes=" + depositSpoolSegmentBytes
+				+ ", depositRateControl=" + depositRateControl
+				+ ", depositRateMin=" + depositRateMin
+				+ ", depositRateMax=" + depositRateMax
+				+ ", depositRateStep=" + depositRateStep
+				+ ", depositRateLatencyMillis=" + depositRateLatencyMillis
+				+ ", metricsLogSeconds=" + metricsLogSeconds + "]";
 	}
 
 	public void postLoadCalculateValues() {
-		httpWarehouseURL = "https" + warehouseURL.substring(warehouseURL.indexOf(":"));
+		// The CAS service URL, plain http only for an unencrypted ws:// server such as the local stand-in
+		String httpScheme = warehouseURL.startsWith("ws:") ? "http" : "https";
+		httpWarehouseURL = httpScheme + warehouseURL.substring(warehouseURL.indexOf(":"));
 		if (responseDir == null || responseDir.isEmpty()) {
 			responseDir = DEFAULT_OUTPUT_DIR;
 		}
+		if (binaryOutputMode == null || binaryOutputMode.isEmpty()) {
+			binaryOutputMode = DEFAULT_BINARY_OUTPUT_MODE;
+		}
+		if (segmentMaxBytes <= 0) {
+			segmentMaxBytes = DEFAULT_SEGMENT_MAX_BYTES;
+		}
+		if (textFlushMessages <= 0) {
+			textFlushMessages = DEFAULT_TEXT_FLUSH_MESSAGES;
+		}
+		if (textFlushMillis < 0) {
+			textFlushMillis = DEFAULT_TEXT_FLUSH_MILLIS;
+		}
+		if (textRollBytes <= 0) {
+			textRollBytes = DEFAULT_TEXT_ROLL_BYTES;
+		}
+		if (textCompression == null || textCompression.isEmpty()) {
+			textCompression = DEFAULT_TEXT_COMPRESSION;
+		}
+		if (responseQueueCapacity <= 0) {
+			responseQueueCapacity = DEFAULT_RESPONSE_QUEUE_CAPACITY;
+		}
+		if (responseWriterThreads <= 0) {
+			responseWriterThreads = DEFAULT_RESPONSE_WRITER_THREADS;
+		}
+		if (responseOverflowPolicy == null || responseOverflowPolicy.isEmpty()) {
+			responseOverflowPolicy = DEFAULT_RESPONSE_OVERFLOW_POLICY;
+		}
+		if (responseQueueHighWatermark <= 0 || responseQueueHighWatermark > 100) {
+			responseQueueHighWatermark = DEFAULT_RESPONSE_QUEUE_HIGH_WATERMARK;
+		}
+		if (responseQueueLowWatermark <= 0 || responseQueueLowWatermark >= responseQueueHighWatermark) {
+			responseQueueLowWatermark = Math.min(DEFAULT_RESPONSE_QUEUE_LOW_WATERMARK, responseQueueHighWatermark / 2);
+		}
+		if (responseSpillDir == null || responseSpillDir.isEmpty()) {
+			responseSpillDir = DEFAULT_RESPONSE_SPILL_DIR;
+		}
+		if (watchMode == null || watchMode.isEmpty()) {
+			watchMode = DEFAULT_WATCH_MODE;
+		}
+		if (watchPollMillis <= 0) {
+			watchPollMillis = DEFAULT_WATCH_POLL_MILLIS;
+		}
+		if (watchDebounceMillis <= 0) {
+			watchDebounceMillis = DEFAULT_WATCH_DEBOUNCE_MILLIS;
+		}
+		if (queryParallelism <= 0) {
+			queryParallelism = DEFAULT_QUERY_PARALLELISM;
+		}
+		if (queryPageTimeoutSeconds <= 0) {
+			queryPageTimeoutSeconds = DEFAULT_QUERY_PAGE_TIMEOUT_SECONDS;
+		}
+		if (queryCacheDir == null || queryCacheDir.isEmpty()) {
+			queryCacheDir = DEFAULT_QUERY_CACHE_DIR;
+		}
+		if (queryCacheTtlMinutes <= 0) {
+			queryCacheTtlMinutes = DEFAULT_QUERY_CACHE_TTL_MINUTES;
+		}
+		if (queryCacheImmutableMinutes <= 0) {
+			queryCacheImmutableMinutes = DEFAULT_QUERY_CACHE_IMMUTABLE_MINUTES;
+		}
+		if (sinkBatchSize <= 0) {
+			sinkBatchSize = DEFAULT_SINK_BATCH_SIZE;
+		}
+		if (sessionPoolSize <= 0) {
+			sessionPoolSize = DEFAULT_SESSION_POOL_SIZE;
+		}
+		if (reconnectInitialMillis <= 0) {
+			reconnectInitialMillis = DEFAULT_RECONNECT_INITIAL_MILLIS;
+		}
+		if (reconnectMaxMillis <= 0) {
+			reconnectMaxMillis = DEFAULT_RECONNECT_MAX_MILLIS;
+		}
+		if (reconnectMaxMillis < reconnectInitialMillis) {
+			reconnectMaxMillis = reconnectInitialMillis;
+		}
+		if (tlsProtocols == null || tlsProtocols.length == 0) {
+			tlsProtocols = DEFAULT_TLS_PROTOCOLS.clone();
+		}
+		if (tlsSessionCacheSize <= 0) {
+			tlsSessionCacheSize = DEFAULT_TLS_SESSION_CACHE_SIZE;
+		}
+		if (tlsSessionTimeoutSeconds <= 0) {
+			tlsSessionTimeoutSeconds = DEFAULT_TLS_SESSION_TIMEOUT_SECONDS;
+		}
+		if (casMaxConnections <= 0) {
+			casMaxConnections = DEFAULT_CAS_MAX_CONNECTIONS;
+		}
+		if (casTgtLifetimeMinutes <= 0) {
+			casTgtLifetimeMinutes = DEFAULT_CAS_TGT_LIFETIME_MINUTES;
+		}
+		if (casRenewMinutes == 0) {
+			casRenewMinutes = DEFAULT_CAS_RENEW_MINUTES;
+		}
+		if (depositWindowSize <= 0) {
+			depositWindowSize = DEFAULT_DEPOSIT_WINDOW_SIZE;
+		}
+		if (depositWorkers <= 0) {
+			depositWorkers = DEFAULT_DEPOSIT_WORKERS;
+		}
+		if (depositQueueCapacity <= 0) {
+			depositQueueCapacity = DEFAULT_DEPOSIT_QUEUE_CAPACITY;
+		}
+		if (depositCheckpointDir == null || depositCheckpointDir.isEmpty()) {
+			depositCheckpointDir = DEFAULT_DEPOSIT_CHECKPOINT_DIR;
+		}
+		if (depositCheckpointInterval <= 0) {
+			depositCheckpointInterval = DEFAULT_DEPOSIT_CHECKPOINT_INTERVAL;
+		}
+		if (depositDedupMaxRecords <= 0) {
+			depositDedupMaxRecords = DEFAULT_DEPOSIT_DEDUP_MAX_RECORDS;
+		}
+		if (depositSpoolDir == null || depositSpoolDir.isEmpty()) {
+			depositSpoolDir = DEFAULT_DEPOSIT_SPOOL_DIR;
+		}
+		if (depositSpoolMaxBytes <= 0) {
+			depositSpoolMaxBytes = DEFAULT_DEPOSIT_SPOOL_MAX_BYTES;
+		}
+		if (depositSpoolSegmentBytes <= 0) {
+			depositSpoolSegmentBytes = DEFAULT_DEPOSIT_SPOOL_SEGMENT_BYTES;
+		}
+		if (depositRateMin <= 0) {
+			depositRateMin = DEFAULT_DEPOSIT_RATE_MIN;
+		}
+		if (depositRateMax <= 0) {
+			depositRateMax = DEFAULT_DEPOSIT_RATE_MAX;
+		}
+		if (depositRateMax < depositRateMin) {
+			depositRateMax = depositRateMin;
+		}
+		if (depositRateStep <= 0) {
+			depositRateStep = DEFAULT_DEPOSIT_RATE_STEP;
+		}
+		if (depositRateLatencyMillis <= 0) {
+			depositRateLatencyMillis = DEFAULT_DEPOSIT_RATE_LATENCY_MILLIS;
+		}
 	}
 	
 }
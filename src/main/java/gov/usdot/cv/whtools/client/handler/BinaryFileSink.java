@@ -0,0 +1,122 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+import gov.usdot.cv.whtools.client.metrics.Counter;
+import gov.usdot.cv.whtools.client.metrics.MetricsRegistry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes decoded hex and base64 data messages, enabled by writeToDisk with
+ * binaryFiles. Depending on binaryOutputMode every record goes to its own
+ * .ber file or is appended to the stream's segment files.
+ */
+public class BinaryFileSink implements MessageSink {
+
+	private static final Logger logger = Logger.getLogger(BinaryFileSink.class
+			.getName());
+
+	private static final Counter bytesWritten = MetricsRegistry.getInstance().counter("responseBytesWritten");
+
+	private static final AtomicInteger fileCounter = new AtomicInteger();
+
+	private WarehouseConfig wsConfig;
+	private boolean segments;
+	private ConcurrentHashMap<String,SegmentWriter> segmentWriters = new ConcurrentHashMap<String,SegmentWriter>();
+	private SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss.SSS");
+
+	public void open(WarehouseConfig wsConfig) {
+		this.wsConfig = wsConfig;
+		this.segments = ResponseHandler.BINARY_OUTPUT_SEGMENTS.equalsIgnoreCase(wsConfig.binaryOutputMode);
+	}
+
+	public void onMessages(List<ResponseMessage> batch) {
+		for (ResponseMessage message : batch) {
+			try {
+				if (message.isBinary()) {
+					write(message);
+				} else if (message.getType() == ResponseMessage.Type.STOP && message.getStream() != null) {
+					SegmentWriter writer = segmentWriters.get(message.getStream().getName());
+					if (writer != null)
+						writer.flush();
+				}
+			} catch (IOException e) {
+				logger.error("Failed to write received message to disk", e);
+			}
+		}
+	}
+
+	public boolean isBackedUp() {
+		return false;
+	}
+
+	public void close() {
+		for (SegmentWriter writer : segmentWriters.values()) {
+			IOUtils.closeQuietly(writer);
+		}
+		segmentWriters.clear();
+	}
+
+	private void write(ResponseMessage message) throws IOException {
+		byte[] bytes = message.getBytes();
+		if (bytes == null) {
+			logger.warn("Failed to decode bytes, Not writing out file!");
+		} else if (segments) {
+			getSegmentWriter(message.getStream()).append(bytes, message.getReceivedTime());
+			bytesWritten.add(bytes.length);
+		} else {
+			OutputStream out = new FileOutputStream(newBinaryFile(message.getStream()));
+			try {
+				IOUtils.write(bytes, out);
+			} finally {
+				IOUtils.closeQuietly(out);
+			}
+			bytesWritten.add(bytes.length);
+		}
+	}
+
+	private File newBinaryFile(ResponseStream stream) {
+		String date;
+		synchronized (sdf) {
+			date = sdf.format(new Date());
+		}
+		// The stream name is <prefix>_<session>, like the stream's text and segment files
+		String fileName = String.format("%s_%s_%s_%s.ber", stream.getName(), date,
+				System.currentTimeMillis(), fileCounter.getAndIncrement());
+		return new File(wsConfig.responseDir, fileName);
+	}
+
+	private SegmentWriter getSegmentWriter(ResponseStream stream) {
+		SegmentWriter writer = segmentWriters.get(stream.getName());
+		if (writer == null) {
+			writer = new SegmentWriter(new File(wsConfig.responseDir), stream.getName(), wsConfig.segmentMaxBytes);
+			SegmentWriter existing = segmentWriters.putIfAbsent(stream.getName(), writer);
+			if (existing != null)
+				writer = existing;
+		}
+		return writer;
+	}
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * Persists, per deposit file, the byte offset up to which every line has been
+ * acknowledged so an interrupted file resumes where it left off. In tail mode
+ * the checkpoint is kept after the file is complete, so lines appended later
+ * are deposited starting from that offset, and the next pass over a file
+ * starts where the previous pass stopped reading.
+ */
+public class DepositCheckpoint {
+
+	private static final Logger logger = Logger.getLogger(DepositCheckpoint.class
+			.getName());
+
+	private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+	private static final String FILE_KEY = "file";
+	private static final String OFFSET_KEY = "offset";
+
+	private File checkpointDir;
+	private int checkpointInterval;
+	private boolean tailMode;
+	// Highest offset written for each file, a pass that finishes late never moves it back
+	private Map<String,Long> savedOffsets = new HashMap<String,Long>();
+	// Tail mode: how far each file has been read, sent or not
+	private Map<String,Long> readOffsets = new HashMap<String,Long>();
+
+	public DepositCheckpoint(String checkpointDir, int checkpointInterval) {
+		this(checkpointDir, checkpointInterval, false);
+	}
+
+	public DepositCheckpoint(String checkpointDir, int checkpointInterval, boolean tailMode) {
+		this.checkpointDir = new File(checkpointDir);
+		this.checkpointInterval = checkpointInterval;
+		this.tailMode = tailMode;
+		if (!this.checkpointDir.exists())
+			this.checkpointDir.mkdirs();
+	}
+
+	/**
+	 * Returns the offset to start reading the file from: in tail mode where
+	 * the previous pass stopped reading, otherwise or after a restart the
+	 * checkpoint on disk, and 0 if there is no usable one.
+	 */
+	public synchronized long getOffset(File file) {
+		Long read = readOffsets.get(file.getAbsolutePath());
+		long offset = read != null ? read : loadOffset(file);
+		if (offset > file.length()) {
+			// The file was truncated or replaced by a shorter one
+			logger.warn("Checkpoint for " + file.getAbsolutePath() + " is past the end of the file, starting over");
+			forget(file);
+			return 0;
+		}
+		return offset;
+	}
+
+	private synchronized void setReadOffset(File file, long offset) {
+		if (tailMode) {
+			readOffsets.put(file.getAbsolutePath(), offset);
+		}
+	}
+
+	private long loadOffset(File file) {
+		Properties props = load(getCheckpointFile(file));
+		if (props == null)
+			return 0;
+		try {
+			return Long.parseLong(props.getProperty(OFFSET_KEY, "0"));
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid checkpoint for " + file.getAbsolutePath(), e);
+			return 0;
+		}
+	}
+
+	private synchronized void rewind(File file) {
+		readOffsets.remove(file.getAbsolutePath());
+	}
+
+	private synchronized void forget(File file) {
+		savedOffsets.remove(file.getAbsolutePath());
+		readOffsets.remove(file.getAbsolutePath());
+	}
+
+	/**
+	 * Returns the deposit files that still have a checkpoint, i.e. were not
+	 * completely deposited before the last shutdown. In tail mode these are all
+	 * known files, resuming them picks up lines appended while stopped.
+	 */
+	public List<File> getPendingFiles() {
+		List<File> files = new ArrayList<File>();
+		File[] checkpoints = checkpointDir.listFiles();
+		if (checkpoints == null)
+			return files;
+		for (File checkpoint : checkpoints) {
+			if (!checkpoint.getName().endsWith(CHECKPOINT_SUFFIX))
+				continue;
+			Properties props = load(checkpoint);
+			String fileName = props != null ? props.getProperty(FILE_KEY) : null;
+			if (fileName != null && new File(fileName).exists()) {
+				files.add(new File(fileName));
+			} else {
+				checkpoint.delete();
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Starts tracking a file. The checkpoint is written immediately so a crash
+	 * before the first interval still leaves the file marked as pending.
+	 */
+	public FileProgress begin(File file, long startOffset) {
+		save(file, startOffset);
+		return new FileProgress(file, startOffset);
+	}
+
+	private synchronized void save(File file, long offset) {
+		Long saved = savedOffsets.get(file.getAbsolutePath());
+		if (saved != null && offset <= saved)
+			return;
+		File checkpoint = getCheckpointFile(file);
+		File tmp = new File(checkpointDir, checkpoint.getName() + ".tmp");
+		Properties props = new Properties();
+		props.setProperty(FILE_KEY, file.getAbsolutePath());
+		props.setProperty(OFFSET_KEY, Long.toString(offset));
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			props.store(out, null);
+			out.close();
+			out = null;
+			Files.move(tmp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			savedOffsets.put(file.getAbsolutePath(), offset);
+		} catch (IOException e) {
+			logger.error("Failed to write checkpoint for " + file.getAbsolutePath(), e);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	private synchronized void remove(File file) {
+		forget(file);
+		File checkpoint = getCheckpointFile(file);
+		if (checkpoint.exists() && !checkpoint.delete()) {
+			logger.warn("Failed to remove checkpoint " + checkpoint.getAbsolutePath());
+		}
+	}
+
+	private Properties load(File checkpoint) {
+		if (!checkpoint.exists())
+			return null;
+		InputStream in = null;
+		try {
+			in = new FileInputStream(checkpoint);
+			Properties props = new Properties();
+			props.load(in);
+			return props;
+		} catch (IOException e) {
+			logger.warn("Failed to read checkpoint " + checkpoint.getAbsolutePath(), e);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private File getCheckpointFile(File file) {
+		return new File(checkpointDir, DigestUtils.md5Hex(file.getAbsolutePath()) + CHECKPOINT_SUFFIX);
+	}
+
+	/**
+	 * Tracks the lines of one file in submission order. The committed offset
+	 * only advances past a line once it and every line before it has been
+	 * sent, so a failed send is retried from its own line on the next attempt.
+	 */
+	public class FileProgress {
+		private File file;
+		private ArrayDeque<LineCallback> pending = new ArrayDeque<LineCallback>();
+		private long committedOffset;
+		private long savedOffset;
+		private int acksSinceSave;
+		private boolean finished;
+		private boolean failed;
+
+		private FileProgress(File file, long startOffset) {
+			this.file = file;
+			this.committedOffset = startOffset;
+			this.savedOffset = startOffset;
+		}
+
+		/**
+		 * Returns the callback to attach to the send of the line ending at endOffset.
+		 */
+		public synchronized WriteCallback track(long endOffset) {
+			LineCallback callback = new LineCallback(endOffset);
+			pending.addLast(callback);
+			if (!failed) {
+				setReadOffset(file, endOffset);
+			}
+			return callback;
+		}
+
+		/**
+		 * Marks the end of the file, no more lines will be tracked.
+		 */
+		public synchronized void finish() {
+			finished = true;
+			checkComplete();
+		}
+
+		/**
+		 * Stops tracking before the end of the file. The checkpoint is kept so
+		 * the file is resumed from the last acknowledged line.
+		 */
+		public synchronized void abort() {
+			finished = true;
+			failed = true;
+			rewind(file);
+			persist();
+		}
+
+		private synchronized void complete(LineCallback callback, boolean success) {
+			callback.done = true;
+			if (!success && !failed) {
+				failed = true;
+				// The next pass goes back to the last acknowledged line to send the failed one again
+				rewind(file);
+			}
+			while (!failed && !pending.isEmpty() && pending.peekFirst().done) {
+				committedOffset = pending.removeFirst().endOffset;
+				acksSinceSave++;
+			}
+			if (acksSinceSave >= checkpointInterval) {
+				persist();
+			}
+			checkComplete();
+		}
+
+		private void checkComplete() {
+			if (!finished)
+				return;
+			if (!failed && pending.isEmpty()) {
+				if (tailMode) {
+					persist();
+				} else {
+					remove(file);
+				}
+			} else if (failed) {
+				persist();
+			}
+		}
+
+		private void persist() {
+			if (committedOffset != savedOffset) {
+				save(file, committedOffset);
+				savedOffset = committedOffset;
+			}
+			acksSinceSave = 0;
+		}
+
+		private class LineCallback implements WriteCallback {
+			private long endOffset;
+			private boolean done;
+
+			private LineCallback(long endOffset) {
+				this.endOffset = endOffset;
+			}
+
+			public void writeSuccess() {
+				complete(this, true);
+			}
+
+			public void writeFailed(Throwable t) {
+				complete(this, false);
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads a hex or base64 deposit file one line at a time starting at a byte
+ * offset, so large files never have to be loaded on the heap. When reading
+ * complete lines only, a last line without a line terminator is left for
+ * later, as it may still be being appended to.
+ */
+public class DepositFileReader implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private FileInputStream in;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int position;
+	private int limit;
+	private long offset;
+	private boolean completeLinesOnly;
+	private StringBuilder line = new StringBuilder(256);
+
+	public DepositFileReader(File file, long startOffset) throws IOException {
+		this(file, startOffset, false);
+	}
+
+	public DepositFileReader(File file, long startOffset, boolean completeLinesOnly) throws IOException {
+		this.completeLinesOnly = completeLinesOnly;
+		this.in = new FileInputStream(file);
+		if (startOffset > 0) {
+			in.getChannel().position(startOffset);
+		}
+		this.offset = startOffset;
+	}
+
+	/**
+	 * Returns the next non-empty line without its line terminator, or null at
+	 * the end of the file.
+	 */
+	public String readLine() throws IOException {
+		line.setLength(0);
+		return appendLine(line) ? line.toString() : null;
+	}
+
+	/**
+	 * Appends the next non-empty line to the given buffer. Returns false at the
+	 * end of the file. Encoded deposit lines are ASCII so each byte is a char.
+	 */
+	public boolean appendLine(StringBuilder sb) throws IOException {
+		int start = sb.length();
+		while (true) {
+			if (position == limit) {
+				limit = in.read(buffer);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					if (completeLinesOnly && sb.length() > start) {
+						offset -= sb.length() - start;
+						sb.setLength(start);
+						return false;
+					}
+					return sb.length() > start;
+				}
+			}
+			byte b = buffer[position++];
+			offset++;
+			if (b == '\n' || b == '\r') {
+				if (sb.length() > start)
+					return true;
+			} else {
+				sb.append((char) b);
+			}
+		}
+	}
+
+	/**
+	 * The byte offset just past the last line returned.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Builds DEPOSIT: frames in a per-thread buffer that is reused between
+ * deposits. The payload is written straight into the frame, so the only
+ * copy made per deposit is the final String handed to the WebSocket.
+ */
+public class DepositFrameEncoder {
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final String FRAME_SUFFIX = "\" }";
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int READ_BUFFER_SIZE = 8192;
+	// Buffers grown past this size by a large BER file are not kept for reuse
+	private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+	private final String framePrefix;
+	private final ThreadLocal<StringBuilder> frameBuffer = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(INITIAL_CAPACITY);
+		}
+	};
+	private final ThreadLocal<byte[]> readBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[READ_BUFFER_SIZE];
+		}
+	};
+	// Hex digits of one read buffer, appended to the frame at once
+	private final ThreadLocal<char[]> hexBuffer = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[2 * READ_BUFFER_SIZE];
+		}
+	};
+
+	public DepositFrameEncoder(String systemDepositName, String encodeType) {
+		this.framePrefix = "DEPOSIT: { \"systemDepositName\": \"" + systemDepositName
+				+ "\", \"encodeType\": \"" + encodeType + "\", \"encodedMsg\": \"";
+	}
+
+	/**
+	 * Returns this thread's frame buffer with the envelope already written.
+	 * Append the encoded message and pass the buffer to {@link #end}.
+	 */
+	public StringBuilder begin() {
+		StringBuilder frame = frameBuffer.get();
+		if (frame.capacity() > MAX_RETAINED_CAPACITY) {
+			frame = new StringBuilder(INITIAL_CAPACITY);
+			frameBuffer.set(frame);
+		}
+		frame.setLength(0);
+		frame.append(framePrefix);
+		return frame;
+	}
+
+	public String end(StringBuilder frame) {
+		frame.append(FRAME_SUFFIX);
+		return frame.toString();
+	}
+
+	public String encode(CharSequence encodedMsg) {
+		StringBuilder frame = begin();
+		frame.append(encodedMsg);
+		return end(frame);
+	}
+
+	/**
+	 * Builds a frame whose encoded message is the hex encoding of the stream.
+	 */
+	public String encodeHex(InputStream in) throws IOException {
+		StringBuilder frame = begin();
+		appendHex(frame, in);
+		return end(frame);
+	}
+
+	private void appendHex(StringBuilder frame, InputStream in) throws IOException {
+		byte[] buffer = readBuffer.get();
+		char[] hex = hexBuffer.get();
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			for (int i = 0, j = 0; i < read; i++) {
+				int b = buffer[i];
+				hex[j++] = HEX_DIGITS[(b >> 4) & 0x0F];
+				hex[j++] = HEX_DIGITS[b & 0x0F];
+			}
+			frame.append(hex, 0, 2 * read);
+		}
+	}
+}
@@ -15,19 +15,30 @@ package gov.usdot.cv.whtools.client.handler;
 
 import gov.usdot.cv.whtools.client.WarehouseClient;
 import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+import gov.usdot.cv.whtools.client.handler.DepositCheckpoint.FileProgress;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.monitor.FileAlterationListener;
-import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
-import org.apache.commons.io.monitor.FileAlterationMonitor;
-import org.apache.commons.io.monitor.FileAlterationObserver;
 import org.apache.log4j.Logger;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 
+/**
+ * Deposits the files placed in the deposit directory. Files are read by a pool
+ * of depositWorkers threads, so different files are processed concurrently
+ * while the records of one file are queued, and sent on one session, in order.
+ * A file that changes while it is being deposited is processed again after.
+ */
 public class DepositHandler {
 
 	private static final Logger logger = Logger.getLogger(DepositHandler.class
@@ -36,68 +47,197 @@ public class DepositHandler {
 	private final static String ENCODE_TYPE_HEX = "hex";
 	private final static String ENCODE_TYPE_BASE64 = "base64";
 	private final static String ENCODE_TYPE_BER = "ber";
+	private final static long WORKER_STOP_SECONDS = 5;
 	
 	private String watchDirectory;
-	private int pollingInterval = 2000;
 	private WarehouseClient wsClient;
 	private WarehouseConfig whConfig;
-	private String depositMessageFormat = "DEPOSIT: { \"systemDepositName\": \"%s\", \"encodeType\": \"%s\", \"encodedMsg\": \"%s\" }";
+	private DepositSender depositSender;
+	private DepositCheckpoint depositCheckpoint;
+	private DepositIndex depositIndex;
+	private FileListener listener = new FileListener();
+	private DepositFrameEncoder frameEncoder;
+	private DirectoryWatcher watcher;
+	private ExecutorService workers;
+	// Files being deposited, mapped to whether they changed again in the meantime
+	private Map<File,Boolean> activeFiles = new HashMap<File,Boolean>();
 
 	public DepositHandler(String watchDirectory, WarehouseClient wsClient, WarehouseConfig whConfig) {
 		this.watchDirectory = watchDirectory;
 		this.wsClient = wsClient;
 		this.whConfig = whConfig;
+		this.depositSender = new DepositSender(wsClient, whConfig);
+		this.frameEncoder = new DepositFrameEncoder(whConfig.systemDepositName, whConfig.encodeType);
+		this.depositCheckpoint = new DepositCheckpoint(whConfig.depositCheckpointDir, whConfig.depositCheckpointInterval,
+				whConfig.depositTailMode);
+		if (whConfig.depositDedup) {
+			this.depositIndex = new DepositIndex(whConfig.depositCheckpointDir, whConfig.depositDedupMaxRecords,
+					whConfig.depositCheckpointInterval);
+		}
+		this.watcher = new DirectoryWatcher("deposits", watchDirectory, whConfig, listener);
+		if (whConfig.depositTailMode) {
+			// Only complete lines are read, so a file still being appended to can be deposited
+			watcher.setMaxDelayMillis(whConfig.watchDebounceMillis);
+		}
+		final AtomicInteger workerCount = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(whConfig.depositWorkers, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DepositWorker-" + workerCount.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
 	}
 
 	public void start() {
-		FileAlterationObserver observer = new FileAlterationObserver(this.watchDirectory);
-		FileAlterationMonitor monitor = new FileAlterationMonitor(this.pollingInterval);
-		FileAlterationListener listener = new FileListener();
-		observer.addListener(listener);
-		monitor.addObserver(observer);
+		depositSender.start();
+		watcher.start();
+		logger.info("Watching for files to deposit in: " + new File(this.watchDirectory).getAbsolutePath());
+		resumePendingFiles();
+	}
+	
+	public void stop() {
+		watcher.stop();
+		workers.shutdownNow();
 		try {
-			monitor.start();
-			logger.info("Watching for files to deposit in: " + new File(this.watchDirectory).getAbsolutePath());
-		} catch (Exception e) {
-			logger.info("DirectoryWatcher failed to start", e);
+			if (!workers.awaitTermination(WORKER_STOP_SECONDS, TimeUnit.SECONDS))
+				logger.warn("Deposit workers did not stop within " + WORKER_STOP_SECONDS + " seconds");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// Closes the spool, after the workers have stopped appending to it
+		depositSender.stop();
+		if (depositIndex != null) {
+			depositIndex.close();
 		}
 	}
 	
-	private class FileListener extends FileAlterationListenerAdaptor {
-		@Override
-		public void onFileCreate(File file) {
-			logger.info("File created: " + file.getAbsolutePath());
-			depositFile(file);
+	private void resumePendingFiles() {
+		List<File> pendingFiles = depositCheckpoint.getPendingFiles();
+		for (File file : pendingFiles) {
+			logger.info("Resuming interrupted deposit of " + file.getAbsolutePath());
+			schedule(file);
 		}
-
-		@Override
-		public void onFileChange(File file) {
-			if (file.exists()) {
-				logger.info("File changed: " + file.getAbsolutePath());
-				depositFile(file);
+	}
+	
+	private void schedule(File file) {
+		synchronized (activeFiles) {
+			if (activeFiles.containsKey(file)) {
+				activeFiles.put(file, Boolean.TRUE);
+				return;
 			}
+			activeFiles.put(file, Boolean.FALSE);
+		}
+		workers.execute(new FileTask(file));
+	}
+	
+	private class FileTask implements Runnable {
+		private File file;
+		
+		private FileTask(File file) {
+			this.file = file;
+		}
+		
+		public void run() {
+			boolean again;
+			do {
+				listener.depositFile(file);
+				synchronized (activeFiles) {
+					again = Boolean.TRUE.equals(activeFiles.get(file));
+					if (again) {
+						activeFiles.put(file, Boolean.FALSE);
+					} else {
+						activeFiles.remove(file);
+					}
+				}
+			} while (again && !Thread.currentThread().isInterrupted());
+		}
+	}
+	
+	private class FileListener implements DirectoryWatcher.Listener {
+		public void onFileReady(File file) {
+			logger.info("File ready: " + file.getAbsolutePath());
+			schedule(file);
 		}
 		
 		private void depositFile(File file) {
 			try {
 				if (whConfig.encodeType.equalsIgnoreCase(ENCODE_TYPE_HEX) || whConfig.encodeType.equalsIgnoreCase(ENCODE_TYPE_BASE64)) {
-					List<String> fileLines = FileUtils.readLines(file);
-					for (String line: fileLines) {
-						String depositMessage = String.format(depositMessageFormat, whConfig.systemDepositName, whConfig.encodeType, line);
-						logger.info("Sending deposit message " + depositMessage);
-						wsClient.send(depositMessage);
-						try { Thread.sleep(whConfig.depositDelay); } catch (InterruptedException e) {}
-					}
+					depositLines(file);
 				} else if (whConfig.encodeType.equalsIgnoreCase(ENCODE_TYPE_BER)) {
-					char[] message = Hex.encodeHex(FileUtils.readFileToByteArray(file));
-					String depositMessage = String.format(depositMessageFormat, whConfig.systemDepositName, whConfig.encodeType, new String(message));
-					logger.info("Sending deposit message " + depositMessage);
-					wsClient.send(depositMessage);
-					try { Thread.sleep(whConfig.depositDelay); } catch (InterruptedException e) {}
+					InputStream in = new FileInputStream(file);
+					String depositMessage;
+					try {
+						depositMessage = frameEncoder.encodeHex(in);
+					} finally {
+						in.close();
+					}
+					if (depositIndex == null) {
+						submit(file, depositMessage, null);
+					} else {
+						long hash = DepositIndex.hash(depositMessage);
+						if (depositIndex.reserve(hash)) {
+							submit(file, depositMessage, depositIndex.track(hash, null));
+						} else {
+							logger.info("Skipping already deposited file " + file.getAbsolutePath());
+						}
+					}
 				}
 			} catch (IOException e) {
 				logger.error("Error reading deposit file ", e);
+			} catch (InterruptedException e) {
+				logger.warn("Interrupted while queueing deposits from " + file.getAbsolutePath());
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		private void depositLines(File file) throws IOException, InterruptedException {
+			long startOffset = depositCheckpoint.getOffset(file);
+			if (startOffset > 0) {
+				logger.info("Resuming " + file.getAbsolutePath() + " at byte offset " + startOffset);
+			}
+			FileProgress progress = depositCheckpoint.begin(file, startOffset);
+			DepositFileReader reader = new DepositFileReader(file, startOffset, whConfig.depositTailMode);
+			boolean completed = false;
+			int duplicates = 0;
+			try {
+				StringBuilder frame = frameEncoder.begin();
+				while (reader.appendLine(frame)) {
+					String depositMessage = frameEncoder.end(frame);
+					WriteCallback callback = progress.track(reader.getOffset());
+					if (depositIndex == null) {
+						submit(file, depositMessage, callback);
+					} else {
+						long hash = DepositIndex.hash(depositMessage);
+						if (depositIndex.reserve(hash)) {
+							submit(file, depositMessage, depositIndex.track(hash, callback));
+						} else {
+							// Counts as done so the checkpoint moves past it
+							callback.writeSuccess();
+							duplicates++;
+						}
+					}
+					frame = frameEncoder.begin();
+				}
+				completed = true;
+				if (duplicates > 0) {
+					logger.info("Skipped " + duplicates + " already deposited record(s) in " + file.getAbsolutePath());
+				}
+			} finally {
+				reader.close();
+				if (completed) {
+					progress.finish();
+				} else {
+					progress.abort();
+				}
+			}
+		}
+		
+		private void submit(File file, String depositMessage, WriteCallback callback) throws InterruptedException {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Queueing deposit message " + depositMessage);
 			}
+			depositSender.submit(depositMessage, file.getAbsolutePath(), callback);
 		}
 	};
 }
@@ -0,0 +1,264 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * Remembers a 64 bit hash of the most recent maxRecords deposited messages, in
+ * memory and in deposit-index.dat, so the same record is not deposited twice.
+ */
+public class DepositIndex {
+
+	private static final Logger logger = Logger.getLogger(DepositIndex.class
+			.getName());
+
+	private static final String INDEX_FILE = "deposit-index.dat";
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final long GOLDEN_RATIO = 0x9e3779b97f4a7c15L;
+
+	private File indexFile;
+	private int maxRecords;
+	private int flushInterval;
+	// The kept hashes in insertion order, the oldest is overwritten first
+	private long[] ring;
+	private int head;
+	private int size;
+	// Open addressing table of the hashes in the ring, 0 marks a free slot
+	private long[] table;
+	private int tableShift;
+	private boolean containsZero;
+	private Set<Long> inFlight = new HashSet<Long>();
+	private DataOutputStream out;
+	private int unflushed;
+	// Hashes in the index file, it is compacted once that is twice maxRecords
+	private long fileEntries;
+	private final AtomicLong duplicateCount = new AtomicLong();
+
+	public DepositIndex(String directory, int maxRecords, int flushInterval) {
+		File dir = new File(directory);
+		if (!dir.exists())
+			dir.mkdirs();
+		this.indexFile = new File(dir, INDEX_FILE);
+		this.maxRecords = maxRecords;
+		this.flushInterval = flushInterval;
+		this.ring = new long[maxRecords];
+		// At most half full
+		int bits = 64 - Long.numberOfLeadingZeros(Math.max(2L * maxRecords - 1, 1));
+		this.table = new long[1 << bits];
+		this.tableShift = 64 - bits;
+		load();
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the message.
+	 */
+	public static long hash(CharSequence message) {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < message.length(); i++) {
+			char c = message.charAt(i);
+			hash ^= c & 0xff;
+			hash *= FNV_PRIME;
+			hash ^= c >>> 8;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * Claims the message for depositing. Returns false if it was deposited
+	 * before or is being deposited right now.
+	 */
+	public synchronized boolean reserve(long hash) {
+		if (contains(hash) || !inFlight.add(hash)) {
+			duplicateCount.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Wraps the callback of a reserved message so the hash is recorded once
+	 * the send succeeds, and released for a retry if it fails.
+	 */
+	public WriteCallback track(final long hash, final WriteCallback callback) {
+		return new WriteCallback() {
+			public void writeSuccess() {
+				commit(hash);
+				if (callback != null) callback.writeSuccess();
+			}
+
+			public void writeFailed(Throwable t) {
+				release(hash);
+				if (callback != null) callback.writeFailed(t);
+			}
+		};
+	}
+
+	public long getDuplicateCount() {
+		return duplicateCount.get();
+	}
+
+	public synchronized void close() {
+		IOUtils.closeQuietly(out);
+		out = null;
+	}
+
+	private synchronized void commit(long hash) {
+		inFlight.remove(hash);
+		add(hash);
+		try {
+			if (out == null) {
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+			}
+			out.writeLong(hash);
+			if (++unflushed >= flushInterval) {
+				out.flush();
+				unflushed = 0;
+			}
+		} catch (IOException e) {
+			logger.error("Failed to write deposit index " + indexFile.getAbsolutePath(), e);
+		}
+		if (++fileEntries >= 2L * maxRecords) {
+			close();
+			compact();
+		}
+	}
+
+	private synchronized void release(long hash) {
+		inFlight.remove(hash);
+	}
+
+	private void add(long hash) {
+		if (contains(hash))
+			return;
+		if (size == maxRecords) {
+			remove(ring[head]);
+		} else {
+			size++;
+		}
+		ring[head] = hash;
+		head = (head + 1) % maxRecords;
+		if (hash == 0) {
+			containsZero = true;
+			return;
+		}
+		int slot = slot(hash);
+		while (table[slot] != 0) {
+			slot = (slot + 1) & (table.length - 1);
+		}
+		table[slot] = hash;
+	}
+
+	private boolean contains(long hash) {
+		if (hash == 0)
+			return containsZero;
+		for (int slot = slot(hash); table[slot] != 0; slot = (slot + 1) & (table.length - 1)) {
+			if (table[slot] == hash)
+				return true;
+		}
+		return false;
+	}
+
+	private void remove(long hash) {
+		if (hash == 0) {
+			containsZero = false;
+			return;
+		}
+		int mask = table.length - 1;
+		int free = slot(hash);
+		while (table[free] != hash) {
+			free = (free + 1) & mask;
+		}
+		// Moves later entries of the probe sequence back so lookups still find them
+		for (int next = (free + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+			int home = slot(table[next]);
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				table[free] = table[next];
+				free = next;
+			}
+		}
+		table[free] = 0;
+	}
+
+	private int slot(long hash) {
+		return (int) ((hash * GOLDEN_RATIO) >>> tableShift);
+	}
+
+	private void load() {
+		if (!indexFile.exists())
+			return;
+		long entries = 0;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			while (true) {
+				add(in.readLong());
+				entries++;
+			}
+		} catch (EOFException e) {
+			// End of the index, a torn last entry is ignored
+		} catch (IOException e) {
+			logger.error("Failed to read deposit index " + indexFile.getAbsolutePath(), e);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		fileEntries = entries;
+		if (entries > size * 2L) {
+			compact();
+		}
+		logger.info("Loaded " + size + " deposited record hashes from " + indexFile.getAbsolutePath());
+	}
+
+	/**
+	 * Rewrites the index with only the hashes still kept.
+	 */
+	private void compact() {
+		File tmp = new File(indexFile.getParentFile(), INDEX_FILE + ".tmp");
+		DataOutputStream compacted = null;
+		try {
+			compacted = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			int oldest = size < maxRecords ? 0 : head;
+			for (int i = 0; i < size; i++) {
+				compacted.writeLong(ring[(oldest + i) % maxRecords]);
+			}
+			compacted.close();
+			compacted = null;
+			Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			logger.warn("Failed to compact deposit index " + indexFile.getAbsolutePath(), e);
+		} finally {
+			IOUtils.closeQuietly(compacted);
+		}
+		// Also after a failure, so it is only tried again once the file has grown as much
+		fileEntries = size;
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import gov.usdot.cv.whtools.client.WarehouseClient;
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Paces deposits with a token bucket whose rate is adjusted once a second by
+ * additive increase, multiplicative decrease: the rate is halved when the
+ * Warehouse answered with ERROR: or the mean send latency exceeded
+ * depositRateLatencyMillis, and raised by depositRateStep when the sends were
+ * healthy and the bucket was what held the deposits back. The rate starts at
+ * depositRateMin and stays between depositRateMin and depositRateMax. Every
+ * ERROR: counts, including those answering queries.
+ */
+public class DepositRateController implements WarehouseClient.ErrorListener {
+
+	private static final Logger logger = Logger.getLogger(DepositRateController.class
+			.getName());
+
+	private static final long ADJUST_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final double DECREASE_FACTOR = 0.5;
+	// The bucket holds up to 100 ms of deposits, so a burst never exceeds the rate by much
+	private static final double BURST_SECONDS = 0.1;
+
+	private final double minRate;
+	private final double maxRate;
+	private final double step;
+	private final long latencyThresholdNanos;
+	private volatile double rate;
+	private double tokens;
+	private long lastRefill;
+	private long lastAdjust;
+	private boolean throttled;
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder latencySum = new LongAdder();
+	private final LongAdder latencyCount = new LongAdder();
+
+	public DepositRateController(WarehouseConfig whConfig) {
+		this.minRate = whConfig.depositRateMin;
+		this.maxRate = whConfig.depositRateMax;
+		this.step = whConfig.depositRateStep;
+		this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(whConfig.depositRateLatencyMillis);
+		this.rate = minRate;
+		this.lastRefill = this.lastAdjust = System.nanoTime();
+		this.tokens = 1;
+	}
+
+	/**
+	 * Blocks until the next deposit may be sent.
+	 */
+	public void acquire() throws InterruptedException {
+		long wait;
+		while ((wait = tryAcquire()) > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Takes a token, or returns the nanoseconds until one is available.
+	 */
+	private synchronized long tryAcquire() {
+		long now = System.nanoTime();
+		if (now - lastAdjust >= ADJUST_INTERVAL_NANOS) {
+			adjust(now);
+		}
+		tokens = Math.min(Math.max(1, rate * BURST_SECONDS), tokens + rate * (now - lastRefill) / 1e9);
+		lastRefill = now;
+		if (tokens >= 1) {
+			tokens--;
+			return 0;
+		}
+		throttled = true;
+		return Math.min((long) ((1 - tokens) / rate * 1e9), lastAdjust + ADJUST_INTERVAL_NANOS - now + 1);
+	}
+
+	private void adjust(long now) {
+		long errorCount = errors.sumThenReset();
+		long sends = latencyCount.sumThenReset();
+		long meanLatency = sends > 0 ? latencySum.sumThenReset() / sends : 0;
+		double previous = rate;
+		if (errorCount > 0 || meanLatency > latencyThresholdNanos) {
+			rate = Math.max(minRate, rate * DECREASE_FACTOR);
+			if (rate < previous) {
+				logger.info(String.format("Deposit rate lowered to %.0f/s after %d ERROR: replies, mean send latency %.1f ms",
+						rate, errorCount, meanLatency / 1e6));
+			}
+		} else if (throttled && sends > 0) {
+			rate = Math.min(maxRate, rate + step);
+			if (logger.isDebugEnabled() && rate > previous) {
+				logger.debug(String.format("Deposit rate raised to %.0f/s", rate));
+			}
+		}
+		throttled = false;
+		lastAdjust = now;
+	}
+
+	/**
+	 * Reports a completed deposit send and how long it took.
+	 */
+	public void onSendComplete(long latencyNanos) {
+		latencySum.add(latencyNanos);
+		latencyCount.increment();
+	}
+
+	public void onSendFailed() {
+		errors.increment();
+	}
+
+	public void onError(String sessionId, String message) {
+		errors.increment();
+	}
+
+	/**
+	 * The current deposit rate in deposits per second.
+	 */
+	public double getRate() {
+		return rate;
+	}
+}
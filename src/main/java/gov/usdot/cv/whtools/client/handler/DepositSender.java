@@ -0,0 +1,380 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import gov.usdot.cv.whtools.client.WarehouseClient;
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+import gov.usdot.cv.whtools.client.metrics.Counter;
+import gov.usdot.cv.whtools.client.metrics.Gauge;
+import gov.usdot.cv.whtools.client.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * Sends queued deposit messages asynchronously with at most depositWindowSize
+ * sends outstanding. The queue and the window are both bounded, and shared by
+ * all deposit workers, so the window caps the deposits in flight globally.
+ * Messages are sent in the order they were queued. With depositRateControl
+ * the sends are paced by a {@link DepositRateController} instead of depositDelay.
+ *
+ * With depositSpool the messages are queued in a {@link DepositSpool} on disk
+ * instead of in memory. A message counts as deposited for its callback once it
+ * is spooled, and is sent again until a send succeeds. While no session is
+ * open sending pauses, and the spooled messages go out once one is.
+ */
+public class DepositSender {
+
+	private static final Logger logger = Logger.getLogger(DepositSender.class
+			.getName());
+
+	private static final Counter depositsSent = MetricsRegistry.getInstance().counter("depositsSent");
+	private static final Counter depositsFailed = MetricsRegistry.getInstance().counter("depositsFailed");
+	private static final long RETRY_MILLIS = 1000;
+	private static final long STOP_DRAIN_MILLIS = 10000;
+
+	private WarehouseClient wsClient;
+	private int depositDelay;
+	private int windowSize;
+	private BlockingQueue<PendingDeposit> queue;
+	private Semaphore window;
+	private DepositRateController rateController;
+	private DepositSpool spool;
+	private Thread senderThread;
+	private volatile boolean running;
+	// A failed spooled send holds off the next one until then
+	private volatile long retryAfter;
+
+	private final AtomicLong pendingCount = new AtomicLong();
+	private final AtomicLong sentCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	public DepositSender(WarehouseClient wsClient, WarehouseConfig whConfig) {
+		this.wsClient = wsClient;
+		this.depositDelay = whConfig.depositDelay;
+		this.windowSize = whConfig.depositWindowSize;
+		this.queue = new ArrayBlockingQueue<PendingDeposit>(whConfig.depositQueueCapacity);
+		this.window = new Semaphore(windowSize);
+		if (whConfig.depositRateControl) {
+			this.rateController = new DepositRateController(whConfig);
+		}
+		if (whConfig.depositSpool) {
+			try {
+				this.spool = new DepositSpool(whConfig.depositSpoolDir, whConfig.depositSpoolSegmentBytes,
+						whConfig.depositSpoolMaxBytes, whConfig.depositCheckpointInterval);
+			} catch (IOException e) {
+				logger.error("Failed to open deposit spool " + whConfig.depositSpoolDir
+						+ ", deposits are queued in memory only", e);
+			}
+		}
+	}
+
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		senderThread = new Thread(new SendLoop(), "DepositSender");
+		senderThread.setDaemon(true);
+		senderThread.start();
+		MetricsRegistry.getInstance().gauge("depositQueueDepth", new Gauge() {
+			public Number getValue() {
+				return getQueueDepth();
+			}
+		});
+		MetricsRegistry.getInstance().gauge("depositsInFlight", new Gauge() {
+			public Number getValue() {
+				return getInFlight();
+			}
+		});
+		if (spool != null) {
+			MetricsRegistry.getInstance().gauge("depositSpoolBytes", new Gauge() {
+				public Number getValue() {
+					return spool.getSizeBytes();
+				}
+			});
+		}
+		if (rateController != null) {
+			wsClient.addErrorListener(rateController);
+			MetricsRegistry.getInstance().gauge("depositRate", new Gauge() {
+				public Number getValue() {
+					return getRate();
+				}
+			});
+		}
+		logger.info("Deposit sender started with window size " + windowSize + " and queue capacity "
+				+ (queue.size() + queue.remainingCapacity()));
+	}
+
+	/**
+	 * Stops sending. Without a spool the queued messages are given up to
+	 * STOP_DRAIN_MILLIS to go out first, those still unsent are dropped.
+	 */
+	public synchronized void stop() {
+		if (spool == null) {
+			drain();
+		}
+		running = false;
+		if (rateController != null) {
+			wsClient.removeErrorListener(rateController);
+		}
+		if (senderThread != null) {
+			senderThread.interrupt();
+			senderThread = null;
+		}
+		if (spool != null) {
+			spool.close();
+		} else if (pendingCount.get() > 0) {
+			logger.warn("Dropped " + pendingCount.get() + " deposit(s) not sent within " + STOP_DRAIN_MILLIS + " ms of stopping");
+		}
+	}
+
+	private void drain() {
+		long deadline = System.currentTimeMillis() + STOP_DRAIN_MILLIS;
+		while (running && pendingCount.get() > 0 && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Queues a deposit message, blocking while the queue is full.
+	 */
+	public void submit(String depositMessage) throws InterruptedException {
+		submit(depositMessage, null);
+	}
+
+	/**
+	 * Queues a deposit message, blocking while the queue is full. The callback,
+	 * if any, is notified once the send completes or fails.
+	 */
+	public void submit(String depositMessage, WriteCallback callback) throws InterruptedException {
+		submit(depositMessage, null, callback);
+	}
+
+	/**
+	 * Queues a deposit message that is sent on the same session as every other
+	 * message with the same affinity key, keeping their order.
+	 */
+	public void submit(String depositMessage, String affinityKey, WriteCallback callback) throws InterruptedException {
+		if (spool != null) {
+			try {
+				spool.append(depositMessage, affinityKey);
+			} catch (IOException e) {
+				logger.error("Failed to spool deposit message", e);
+				if (callback != null)
+					callback.writeFailed(e);
+				return;
+			}
+			if (callback != null)
+				callback.writeSuccess();
+			return;
+		}
+		pendingCount.incrementAndGet();
+		try {
+			queue.put(new PendingDeposit(depositMessage, affinityKey, callback));
+		} catch (InterruptedException e) {
+			pendingCount.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Blocks until every queued message has been sent and acknowledged.
+	 */
+	public void flush() throws InterruptedException {
+		while (pendingCount.get() > 0 || (spool != null && spool.getBacklog() > 0)) {
+			Thread.sleep(10);
+		}
+	}
+
+	public int getQueueDepth() {
+		return spool != null ? (int) Math.min(spool.getBacklog(), Integer.MAX_VALUE) : queue.size();
+	}
+
+	public int getInFlight() {
+		return windowSize - window.availablePermits();
+	}
+
+	public long getSentCount() {
+		return sentCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * The deposits per second allowed by the rate controller, 0 without depositRateControl.
+	 */
+	public double getRate() {
+		return rateController != null ? rateController.getRate() : 0;
+	}
+
+	private class SendLoop implements Runnable {
+		public void run() {
+			while (running) {
+				try {
+					if (spool != null) {
+						sendSpooled();
+					} else {
+						sendQueued();
+					}
+					if (rateController == null && depositDelay > 0) {
+						Thread.sleep(depositDelay);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+
+		private void sendQueued() throws InterruptedException {
+			PendingDeposit deposit = queue.take();
+			if (rateController != null) {
+				rateController.acquire();
+			}
+			window.acquire();
+			DepositCallback callback = new DepositCallback(deposit.callback);
+			try {
+				wsClient.sendAsync(deposit.message, deposit.affinityKey, callback);
+			} catch (IOException e) {
+				callback.writeFailed(e);
+			}
+		}
+
+		private void sendSpooled() throws InterruptedException {
+			DepositSpool.Record record;
+			try {
+				record = spool.next();
+			} catch (IOException e) {
+				logger.error("Failed to read deposit spool", e);
+				Thread.sleep(RETRY_MILLIS);
+				return;
+			}
+			if (record == null) {
+				// The spool was closed
+				running = false;
+				return;
+			}
+			awaitSession();
+			if (rateController != null) {
+				rateController.acquire();
+			}
+			window.acquire();
+			SpoolCallback callback = new SpoolCallback(record);
+			try {
+				wsClient.sendAsync(record.getMessage(), record.getAffinityKey(), callback);
+			} catch (IOException e) {
+				callback.writeFailed(e);
+			}
+		}
+
+		private void awaitSession() throws InterruptedException {
+			long wait = retryAfter - System.currentTimeMillis();
+			if (wait > 0) {
+				Thread.sleep(wait);
+			}
+			if (wsClient.isConnected())
+				return;
+			logger.warn("No open session, holding " + spool.getBacklog() + " spooled deposits until one is open");
+			while (!wsClient.isConnected()) {
+				Thread.sleep(RETRY_MILLIS);
+			}
+			logger.info("Session open, sending " + spool.getBacklog() + " spooled deposits");
+		}
+	}
+
+	private static class PendingDeposit {
+		private String message;
+		private String affinityKey;
+		private WriteCallback callback;
+
+		private PendingDeposit(String message, String affinityKey, WriteCallback callback) {
+			this.message = message;
+			this.affinityKey = affinityKey;
+			this.callback = callback;
+		}
+	}
+
+	private class SpoolCallback implements WriteCallback {
+		private DepositSpool.Record record;
+		private long start = System.nanoTime();
+
+		private SpoolCallback(DepositSpool.Record record) {
+			this.record = record;
+		}
+
+		public void writeSuccess() {
+			window.release();
+			if (rateController != null)
+				rateController.onSendComplete(System.nanoTime() - start);
+			sentCount.incrementAndGet();
+			depositsSent.inc();
+			spool.ack(record);
+		}
+
+		public void writeFailed(Throwable t) {
+			window.release();
+			if (rateController != null)
+				rateController.onSendFailed();
+			failedCount.incrementAndGet();
+			depositsFailed.inc();
+			retryAfter = System.currentTimeMillis() + RETRY_MILLIS;
+			logger.warn("Failed to send spooled deposit message, it is sent again: " + t.getMessage());
+			spool.retry(record);
+		}
+	}
+
+	private class DepositCallback implements WriteCallback {
+		private WriteCallback delegate;
+		private long start = System.nanoTime();
+
+		private DepositCallback(WriteCallback delegate) {
+			this.delegate = delegate;
+		}
+
+		public void writeSuccess() {
+			window.release();
+			if (rateController != null)
+				rateController.onSendComplete(System.nanoTime() - start);
+			pendingCount.decrementAndGet();
+			sentCount.incrementAndGet();
+			depositsSent.inc();
+			if (delegate != null)
+				delegate.writeSuccess();
+		}
+
+		public void writeFailed(Throwable t) {
+			window.release();
+			if (rateController != null)
+				rateController.onSendFailed();
+			pendingCount.decrementAndGet();
+			failedCount.incrementAndGet();
+			depositsFailed.inc();
+			logger.error("Failed to send deposit message", t);
+			if (delegate != null)
+				delegate.writeFailed(t);
+		}
+	}
+}
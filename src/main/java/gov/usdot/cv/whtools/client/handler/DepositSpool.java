@@ -0,0 +1,529 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only queue of deposit messages in segment files spool-<n>.log, so
+ * messages not yet sent survive an outage or a restart. Each record is
+ *
+ *   int length, int crc32, int affinity key length or -1, key, message
+ *
+ * and spool.ack holds the position of the oldest record not yet acknowledged.
+ */
+public class DepositSpool {
+
+	private static final Logger logger = Logger.getLogger(DepositSpool.class
+			.getName());
+
+	private static final String SEGMENT_PREFIX = "spool-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String ACK_FILE = "spool.ack";
+	private static final String SEGMENT_KEY = "segment";
+	private static final String OFFSET_KEY = "offset";
+	private static final int HEADER_BYTES = 8;
+	private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+	// Records read ahead while their affinity key is busy
+	private static final int MAX_HELD_RECORDS = 1024;
+
+	/**
+	 * A spooled message and where it is stored.
+	 */
+	public static class Record {
+		private final long id;
+		private final long segment;
+		private final long offset;
+		private final String message;
+		private final String affinityKey;
+
+		private Record(long id, long segment, long offset, String message, String affinityKey) {
+			this.id = id;
+			this.segment = segment;
+			this.offset = offset;
+			this.message = message;
+			this.affinityKey = affinityKey;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public String getAffinityKey() {
+			return affinityKey;
+		}
+	}
+
+	private File directory;
+	private long segmentBytes;
+	private long maxBytes;
+	private int ackInterval;
+
+	// Oldest segment still on disk, segments from it up to writeSegment exist
+	private long firstSegment;
+	private long writeSegment;
+	private long writeOffset;
+	private DataOutputStream out;
+	private FileOutputStream outFile;
+	private long totalBytes;
+
+	private long readSegment;
+	private long readOffset;
+	// Length of the segment being read once it is no longer written to, -1 before
+	private long readSegmentLength = -1;
+	private DataInputStream in;
+	private long nextId;
+
+	// Records handed out by next() and not acknowledged yet, by id
+	private TreeMap<Long,Record> outstanding = new TreeMap<Long,Record>();
+	// Records that failed to send, handed out again before any new record
+	private TreeSet<Long> retries = new TreeSet<Long>();
+	// Affinity keys with a record handed out and not acknowledged yet, and that record's id
+	private Map<String,Long> busyKeys = new HashMap<String,Long>();
+	// Records read while their affinity key was busy, in order per key
+	private Map<String,ArrayDeque<Record>> held = new HashMap<String,ArrayDeque<Record>>();
+	private int heldCount;
+	// Held records whose key is no longer busy, handed out before any new record
+	private TreeMap<Long,Record> released = new TreeMap<Long,Record>();
+	private long backlog;
+	private long savedSegment;
+	private long savedOffset;
+	private int unsaved;
+	private boolean closed;
+	private final CRC32 crc = new CRC32();
+
+	public DepositSpool(String directory, long segmentBytes, long maxBytes, int ackInterval) throws IOException {
+		this.directory = new File(directory);
+		if (!this.directory.exists())
+			this.directory.mkdirs();
+		this.segmentBytes = segmentBytes;
+		// Room for at least the segment being read and the one being written
+		this.maxBytes = Math.max(maxBytes, 2 * segmentBytes);
+		this.ackInterval = ackInterval;
+		recover();
+	}
+
+	/**
+	 * Writes a message to the spool, blocking while the spool is full. The
+	 * message is in the operating system's hands when this returns. A record
+	 * larger than MAX_RECORD_BYTES is rejected, recovery would cut it off.
+	 */
+	public synchronized void append(String message, String affinityKey) throws IOException, InterruptedException {
+		byte[] key = affinityKey != null ? affinityKey.getBytes(StandardCharsets.UTF_8) : null;
+		byte[] body = message.getBytes(StandardCharsets.UTF_8);
+		long recordLength = 4L + (key != null ? key.length : 0) + body.length;
+		if (recordLength > MAX_RECORD_BYTES)
+			throw new IOException("Deposit message of " + recordLength + " bytes exceeds the spool record limit of "
+					+ MAX_RECORD_BYTES + " bytes");
+		int length = (int) recordLength;
+		if (totalBytes >= maxBytes) {
+			saveAckPosition();
+		}
+		while (totalBytes >= maxBytes && !closed) {
+			wait();
+		}
+		if (closed)
+			throw new IOException("Deposit spool is closed");
+		if (writeOffset > 0 && writeOffset + HEADER_BYTES + length > segmentBytes) {
+			roll();
+		}
+		int keyLength = key != null ? key.length : -1;
+		crc.reset();
+		crc.update(keyLength >>> 24);
+		crc.update(keyLength >>> 16);
+		crc.update(keyLength >>> 8);
+		crc.update(keyLength);
+		if (key != null)
+			crc.update(key);
+		crc.update(body);
+		out.writeInt(length);
+		out.writeInt((int) crc.getValue());
+		out.writeInt(keyLength);
+		if (key != null)
+			out.write(key);
+		out.write(body);
+		out.flush();
+		writeOffset += HEADER_BYTES + length;
+		totalBytes += HEADER_BYTES + length;
+		backlog++;
+		notifyAll();
+	}
+
+	/**
+	 * Returns the next record to send, a failed record first, blocking until
+	 * one is available. Returns null once the spool is closed.
+	 */
+	public synchronized Record next() throws IOException, InterruptedException {
+		while (!closed) {
+			if (!retries.isEmpty()) {
+				return outstanding.get(retries.pollFirst());
+			}
+			if (!released.isEmpty()) {
+				return released.pollFirstEntry().getValue();
+			}
+			if (heldCount < MAX_HELD_RECORDS && (readSegment < writeSegment || readOffset < writeOffset)) {
+				Record record = read();
+				if (record != null) {
+					outstanding.put(record.id, record);
+					if (record.affinityKey == null)
+						return record;
+					if (!busyKeys.containsKey(record.affinityKey)) {
+						busyKeys.put(record.affinityKey, record.id);
+						return record;
+					}
+					ArrayDeque<Record> queue = held.get(record.affinityKey);
+					if (queue == null) {
+						queue = new ArrayDeque<Record>();
+						held.put(record.affinityKey, queue);
+					}
+					queue.addLast(record);
+					heldCount++;
+				}
+				continue;
+			}
+			wait();
+		}
+		return null;
+	}
+
+	/**
+	 * Marks a record as sent. Its space is freed once every older record is too.
+	 */
+	public synchronized void ack(Record record) {
+		if (closed || outstanding.remove(record.id) == null)
+			return;
+		backlog--;
+		if (record.affinityKey != null && Long.valueOf(record.id).equals(busyKeys.get(record.affinityKey))) {
+			// The next record with its key can go now
+			busyKeys.remove(record.affinityKey);
+			ArrayDeque<Record> queue = held.get(record.affinityKey);
+			if (queue != null) {
+				Record next = queue.pollFirst();
+				if (queue.isEmpty())
+					held.remove(record.affinityKey);
+				heldCount--;
+				busyKeys.put(next.affinityKey, next.id);
+				released.put(next.id, next);
+				notifyAll();
+			}
+		}
+		// Saving also frees the acknowledged segments an append may be waiting for
+		if (++unsaved >= ackInterval || totalBytes >= maxBytes) {
+			saveAckPosition();
+		}
+	}
+
+	/**
+	 * Hands the record out again, before any record not sent yet. Its
+	 * affinity key stays busy until it has been sent.
+	 */
+	public synchronized void retry(Record record) {
+		if (closed || !outstanding.containsKey(record.id))
+			return;
+		retries.add(record.id);
+		notifyAll();
+	}
+
+	/**
+	 * Records written and not acknowledged yet, including those recovered at start.
+	 */
+	public synchronized long getBacklog() {
+		return backlog;
+	}
+
+	public synchronized long getSizeBytes() {
+		return totalBytes;
+	}
+
+	public synchronized void close() {
+		if (closed)
+			return;
+		saveAckPosition();
+		closed = true;
+		try {
+			if (out != null) {
+				out.flush();
+				outFile.getFD().sync();
+			}
+		} catch (IOException e) {
+			logger.warn("Failed to sync deposit spool " + directory.getAbsolutePath(), e);
+		}
+		IOUtils.closeQuietly(out);
+		IOUtils.closeQuietly(in);
+		notifyAll();
+	}
+
+	private Record read() throws IOException {
+		if (readSegment < writeSegment) {
+			if (readSegmentLength < 0)
+				readSegmentLength = segmentFile(readSegment).length();
+			if (readOffset >= readSegmentLength) {
+				// Done with a segment that is no longer written to
+				IOUtils.closeQuietly(in);
+				in = null;
+				readSegment++;
+				readOffset = 0;
+				readSegmentLength = -1;
+				return null;
+			}
+		}
+		if (in == null) {
+			in = openAt(readSegment, readOffset);
+		}
+		int length = in.readInt();
+		in.readInt();
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		Record record = decode(nextId++, readSegment, readOffset, bytes);
+		readOffset += HEADER_BYTES + length;
+		return record;
+	}
+
+	private static Record decode(long id, long segment, long offset, byte[] bytes) {
+		int keyLength = keyLength(bytes);
+		String key = null;
+		int start = 4;
+		if (keyLength >= 0) {
+			key = new String(bytes, start, keyLength, StandardCharsets.UTF_8);
+			start += keyLength;
+		}
+		String message = new String(bytes, start, bytes.length - start, StandardCharsets.UTF_8);
+		return new Record(id, segment, offset, message, key);
+	}
+
+	private void roll() throws IOException {
+		out.flush();
+		outFile.getFD().sync();
+		out.close();
+		writeSegment++;
+		writeOffset = 0;
+		outFile = new FileOutputStream(segmentFile(writeSegment));
+		out = new DataOutputStream(new BufferedOutputStream(outFile));
+		notifyAll();
+	}
+
+	/**
+	 * Writes the position of the oldest unacknowledged record and deletes the
+	 * segments before it.
+	 */
+	private void saveAckPosition() {
+		long segment;
+		long offset;
+		if (!outstanding.isEmpty()) {
+			Record oldest = outstanding.firstEntry().getValue();
+			segment = oldest.segment;
+			offset = oldest.offset;
+		} else {
+			segment = readSegment;
+			offset = readOffset;
+		}
+		unsaved = 0;
+		if (segment == savedSegment && offset == savedOffset)
+			return;
+		File ackFile = new File(directory, ACK_FILE);
+		File tmp = new File(directory, ACK_FILE + ".tmp");
+		Properties props = new Properties();
+		props.setProperty(SEGMENT_KEY, Long.toString(segment));
+		props.setProperty(OFFSET_KEY, Long.toString(offset));
+		OutputStream ackOut = null;
+		try {
+			ackOut = new FileOutputStream(tmp);
+			props.store(ackOut, null);
+			ackOut.close();
+			ackOut = null;
+			Files.move(tmp.toPath(), ackFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			savedSegment = segment;
+			savedOffset = offset;
+		} catch (IOException e) {
+			logger.error("Failed to write deposit spool position " + ackFile.getAbsolutePath(), e);
+			return;
+		} finally {
+			IOUtils.closeQuietly(ackOut);
+		}
+		while (firstSegment < savedSegment) {
+			File file = segmentFile(firstSegment);
+			long length = file.length();
+			if (file.exists() && !file.delete()) {
+				logger.warn("Failed to delete deposit spool segment " + file.getAbsolutePath());
+				break;
+			}
+			totalBytes -= length;
+			firstSegment++;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Finds the segments, the acknowledged position and the end of the last
+	 * complete record, cutting off a record torn by a crash.
+	 */
+	private void recover() throws IOException {
+		long[] segments = listSegments();
+		Properties props = new Properties();
+		File ackFile = new File(directory, ACK_FILE);
+		if (ackFile.exists()) {
+			InputStream ackIn = new FileInputStream(ackFile);
+			try {
+				props.load(ackIn);
+			} finally {
+				ackIn.close();
+			}
+		}
+		long ackSegment = Long.parseLong(props.getProperty(SEGMENT_KEY, "0"));
+		long ackOffset = Long.parseLong(props.getProperty(OFFSET_KEY, "0"));
+		if (segments.length == 0) {
+			ackSegment = ackOffset = 0;
+			firstSegment = writeSegment = 0;
+		} else {
+			firstSegment = segments[0];
+			writeSegment = segments[segments.length - 1];
+			if (ackSegment < firstSegment || ackSegment > writeSegment) {
+				ackSegment = firstSegment;
+				ackOffset = 0;
+			}
+			ackOffset = Math.min(ackOffset, segmentFile(ackSegment).length());
+		}
+		savedSegment = ackSegment;
+		savedOffset = ackOffset;
+		readSegment = ackSegment;
+		readOffset = ackOffset;
+
+		for (long segment = firstSegment; segment <= writeSegment; segment++) {
+			File file = segmentFile(segment);
+			if (segment < ackSegment) {
+				// Fully acknowledged but not deleted before the crash
+				file.delete();
+				continue;
+			}
+			long end = scan(file, segment == ackSegment ? ackOffset : 0);
+			if (end < file.length()) {
+				logger.warn("Cutting off a torn record at " + end + " in deposit spool segment " + file.getAbsolutePath());
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(end);
+				} finally {
+					raf.close();
+				}
+			}
+			totalBytes += end;
+			if (segment == writeSegment)
+				writeOffset = end;
+		}
+		firstSegment = Math.min(ackSegment, writeSegment);
+		outFile = new FileOutputStream(segmentFile(writeSegment), true);
+		out = new DataOutputStream(new BufferedOutputStream(outFile));
+		if (backlog > 0) {
+			logger.info("Recovered " + backlog + " unsent deposits from spool " + directory.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Counts the valid records from the offset on and returns the end of the last one.
+	 */
+	private long scan(File file, long offset) throws IOException {
+		if (!file.exists())
+			return 0;
+		DataInputStream scanIn = openFile(file, offset);
+		long end = offset;
+		try {
+			while (true) {
+				int length = scanIn.readInt();
+				int checksum = scanIn.readInt();
+				if (length < 4 || length > MAX_RECORD_BYTES)
+					break;
+				byte[] bytes = new byte[length];
+				scanIn.readFully(bytes);
+				crc.reset();
+				crc.update(bytes);
+				if ((int) crc.getValue() != checksum || keyLength(bytes) > length - 4)
+					break;
+				end += HEADER_BYTES + length;
+				backlog++;
+			}
+		} catch (EOFException e) {
+			// End of the segment, or a record cut short
+		} finally {
+			scanIn.close();
+		}
+		return end;
+	}
+
+	private static int keyLength(byte[] bytes) {
+		return ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+	}
+
+	private long[] listSegments() {
+		String[] names = directory.list();
+		if (names == null)
+			return new long[0];
+		long[] segments = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+				try {
+					segments[count++] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+							name.length() - SEGMENT_SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					logger.warn("Ignoring " + name + " in deposit spool " + directory.getAbsolutePath());
+				}
+			}
+		}
+		segments = Arrays.copyOf(segments, count);
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private DataInputStream openAt(long segment, long offset) throws IOException {
+		return openFile(segmentFile(segment), offset);
+	}
+
+	private static DataInputStream openFile(File file, long offset) throws IOException {
+		FileInputStream fileIn = new FileInputStream(file);
+		try {
+			fileIn.getChannel().position(offset);
+		} catch (IOException e) {
+			fileIn.close();
+			throw e;
+		}
+		return new DataInputStream(new BufferedInputStream(fileIn, 64 * 1024));
+	}
+
+	private File segmentFile(long segment) {
+		return new File(directory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+	}
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Watches a directory for files that have been completely written. Changes are
+ * picked up through a WatchService, or by scanning the directory every
+ * watchPollMillis when watchMode is "poll" or no WatchService is available.
+ *
+ * A file is reported once its size and modification time have not changed for
+ * watchDebounceMillis, so a file being written is reported once, after the
+ * writer is done. Writers can also write to a hidden or .tmp/.part file and
+ * rename it into place, such names are ignored. Files already present when the
+ * watcher starts are not reported, a file is reported again when it changes.
+ * With a maximum delay set, a file that keeps changing is reported anyway once
+ * it has been changing for that long.
+ */
+public class DirectoryWatcher implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(DirectoryWatcher.class
+			.getName());
+
+	public static final String WATCH_MODE_EVENTS = "events";
+	public static final String WATCH_MODE_POLL = "poll";
+
+	public interface Listener {
+		void onFileReady(File file);
+	}
+
+	private String name;
+	private File directory;
+	private Listener listener;
+	private boolean poll;
+	private long pollMillis;
+	private long debounceMillis;
+	private long maxDelayMillis;
+	private WatchService watchService;
+	private Thread thread;
+	private volatile boolean running;
+	// Files seen changing that are reported once they stop changing
+	private Map<File,Snapshot> pending = new HashMap<File,Snapshot>();
+	// The state in which each file was last reported or found at start
+	private Map<File,Snapshot> known = new HashMap<File,Snapshot>();
+	private long lastScan;
+
+	public DirectoryWatcher(String name, String directory, WarehouseConfig wsConfig, Listener listener) {
+		this.name = name;
+		this.directory = new File(directory);
+		this.listener = listener;
+		this.poll = WATCH_MODE_POLL.equalsIgnoreCase(wsConfig.watchMode);
+		this.pollMillis = wsConfig.watchPollMillis;
+		this.debounceMillis = wsConfig.watchDebounceMillis;
+	}
+
+	/**
+	 * Reports a file that is still changing once it has been pending for
+	 * maxDelayMillis, for files that are appended to continuously. 0, the
+	 * default, waits until the file stops changing.
+	 */
+	public void setMaxDelayMillis(long maxDelayMillis) {
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	public synchronized void start() {
+		if (running)
+			return;
+		if (!poll) {
+			try {
+				watchService = FileSystems.getDefault().newWatchService();
+				directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			} catch (IOException e) {
+				logger.warn("WatchService is not available for " + directory.getAbsolutePath() + ", polling instead", e);
+				closeWatchService();
+			} catch (UnsupportedOperationException e) {
+				logger.warn("WatchService is not supported for " + directory.getAbsolutePath() + ", polling instead", e);
+				closeWatchService();
+			}
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (isWatched(file))
+					known.put(file, new Snapshot(file));
+			}
+		}
+		lastScan = System.currentTimeMillis();
+		running = true;
+		thread = new Thread(this, "DirectoryWatcher-" + name);
+		thread.setDaemon(true);
+		thread.start();
+		logger.info("Watching " + directory.getAbsolutePath() + (watchService != null ? " for file events"
+				: " by polling every " + pollMillis + " ms"));
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+		closeWatchService();
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				long wait = nextWait();
+				if (watchService != null) {
+					WatchKey key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+					if (key != null) {
+						processEvents(key);
+					}
+				} else {
+					Thread.sleep(wait);
+				}
+				long now = System.currentTimeMillis();
+				if (watchService == null && now - lastScan >= pollMillis) {
+					scan();
+				}
+				reportStableFiles();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (RuntimeException e) {
+				logger.error("Failed to process changes in " + directory.getAbsolutePath(), e);
+			}
+		}
+	}
+
+	private long nextWait() {
+		long now = System.currentTimeMillis();
+		long wait = watchService == null ? Math.max(1, lastScan + pollMillis - now) : pollMillis;
+		for (Snapshot snapshot : pending.values()) {
+			wait = Math.min(wait, Math.max(1, snapshot.checked + debounceMillis - now));
+			if (maxDelayMillis > 0) {
+				wait = Math.min(wait, Math.max(1, snapshot.since + maxDelayMillis - now));
+			}
+		}
+		return wait;
+	}
+
+	private void processEvents(WatchKey key) {
+		boolean overflow = false;
+		do {
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					overflow = true;
+					continue;
+				}
+				File file = directory.toPath().resolve((Path) event.context()).toFile();
+				if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+					pending.remove(file);
+					known.remove(file);
+				} else if (isWatched(file)) {
+					changed(file);
+				}
+			}
+			if (!key.reset()) {
+				logger.error("Directory " + directory.getAbsolutePath() + " is no longer watchable, polling instead");
+				closeWatchService();
+				return;
+			}
+		} while ((key = watchService.poll()) != null);
+		if (overflow) {
+			// Events were lost, find the changes by comparing with the known files
+			scan();
+		}
+	}
+
+	private void scan() {
+		lastScan = System.currentTimeMillis();
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		Set<File> present = new HashSet<File>();
+		for (File file : files) {
+			if (!isWatched(file))
+				continue;
+			present.add(file);
+			Snapshot last = known.get(file);
+			if (!pending.containsKey(file) && (last == null || !last.matches(file))) {
+				changed(file);
+			}
+		}
+		known.keySet().retainAll(present);
+	}
+
+	private void changed(File file) {
+		Snapshot snapshot = pending.get(file);
+		if (snapshot == null) {
+			pending.put(file, new Snapshot(file));
+		} else {
+			snapshot.update(file);
+		}
+	}
+
+	private void reportStableFiles() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<File,Snapshot>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<File,Snapshot> entry = it.next();
+			File file = entry.getKey();
+			Snapshot snapshot = entry.getValue();
+			boolean overdue = maxDelayMillis > 0 && now - snapshot.since >= maxDelayMillis;
+			if (now - snapshot.checked < debounceMillis && !overdue)
+				continue;
+			if (!file.exists()) {
+				it.remove();
+				continue;
+			}
+			if (!snapshot.matches(file)) {
+				// Still being written
+				snapshot.update(file);
+				if (!overdue)
+					continue;
+			}
+			it.remove();
+			Snapshot last = known.get(file);
+			if (last != null && last.matches(file))
+				continue;
+			known.put(file, snapshot);
+			try {
+				listener.onFileReady(file);
+			} catch (RuntimeException e) {
+				logger.error("Failed to process " + file.getAbsolutePath(), e);
+			}
+		}
+	}
+
+	private static boolean isWatched(File file) {
+		String fileName = file.getName();
+		return !fileName.startsWith(".") && !fileName.endsWith(".tmp") && !fileName.endsWith(".part")
+				&& !file.isDirectory();
+	}
+
+	private void closeWatchService() {
+		IOUtils.closeQuietly(watchService);
+		watchService = null;
+	}
+
+	private static class Snapshot {
+		private long length;
+		private long lastModified;
+		private long checked;
+		// When the file was first seen changing
+		private long since;
+
+		private Snapshot(File file) {
+			update(file);
+			since = checked;
+		}
+
+		private void update(File file) {
+			length = file.length();
+			lastModified = file.lastModified();
+			checked = System.currentTimeMillis();
+		}
+
+		private boolean matches(File file) {
+			return file.length() == length && file.lastModified() == lastModified;
+		}
+	}
+}
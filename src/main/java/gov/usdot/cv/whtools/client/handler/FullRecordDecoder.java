@@ -0,0 +1,181 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * Extracts a fixed set of fields from "full" encoded records with a streaming
+ * JsonParser. Fields that are not wanted are skipped without being built into
+ * a tree. Nested fields are named with dotted paths, e.g. "location.lat".
+ */
+public class FullRecordDecoder {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private String[] fields;
+	private Map<String,Integer> fieldIndex = new HashMap<String,Integer>();
+	// Object paths that lead to at least one wanted field and must be descended into
+	private Set<String> parentPaths = new HashSet<String>();
+
+	public FullRecordDecoder(String[] fields) {
+		this.fields = fields.clone();
+		for (int i = 0; i < fields.length; i++) {
+			fieldIndex.put(fields[i], i);
+			String path = fields[i];
+			int dot;
+			while ((dot = path.lastIndexOf('.')) > 0) {
+				path = path.substring(0, dot);
+				parentPaths.add(path);
+			}
+		}
+	}
+
+	public String[] getFields() {
+		return fields;
+	}
+
+	public FullRecord newRecord() {
+		return new FullRecord(fields);
+	}
+
+	/**
+	 * Decodes the message into the given record, which is cleared first.
+	 * Returns false if the message is not a JSON object.
+	 */
+	public boolean decode(String message, FullRecord record) throws IOException {
+		record.clear();
+		JsonParser parser = jsonFactory.createJsonParser(message);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				return false;
+			decodeObject(parser, null, record);
+			return true;
+		} finally {
+			parser.close();
+		}
+	}
+
+	private void decodeObject(JsonParser parser, String parentPath, FullRecord record) throws IOException {
+		JsonToken token;
+		while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			String path = parentPath == null ? name : parentPath + "." + name;
+			token = parser.nextToken();
+			Integer index = fieldIndex.get(path);
+			if (index != null && token.isScalarValue()) {
+				record.set(index, parser.getText(), token == JsonToken.VALUE_STRING);
+			} else if (token == JsonToken.START_OBJECT && parentPaths.contains(path)) {
+				decodeObject(parser, path, record);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (token != JsonToken.END_OBJECT) {
+			throw new IOException("Malformed record, unexpected " + token);
+		}
+	}
+
+	/**
+	 * Holds the projected field values of one record. Reused between records.
+	 */
+	public static class FullRecord {
+		private String[] fields;
+		private String[] values;
+		private boolean[] quoted;
+
+		private FullRecord(String[] fields) {
+			this.fields = fields;
+			this.values = new String[fields.length];
+			this.quoted = new boolean[fields.length];
+		}
+
+		public void clear() {
+			for (int i = 0; i < values.length; i++) {
+				values[i] = null;
+			}
+		}
+
+		private void set(int index, String value, boolean isString) {
+			values[index] = value;
+			quoted[index] = isString;
+		}
+
+		public int size() {
+			return values.length;
+		}
+
+		public String getField(int index) {
+			return fields[index];
+		}
+
+		public String getValue(int index) {
+			return values[index];
+		}
+
+		public String get(String field) {
+			for (int i = 0; i < fields.length; i++) {
+				if (fields[i].equals(field))
+					return values[i];
+			}
+			return null;
+		}
+
+		/**
+		 * Appends the projected fields as a flat JSON object, missing fields are omitted.
+		 */
+		public StringBuilder appendJson(StringBuilder sb) {
+			sb.append('{');
+			boolean first = true;
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] == null)
+					continue;
+				if (!first)
+					sb.append(',');
+				first = false;
+				sb.append('"');
+				appendEscaped(sb, fields[i]);
+				sb.append("\":");
+				if (quoted[i]) {
+					sb.append('"');
+					appendEscaped(sb, values[i]);
+					sb.append('"');
+				} else {
+					sb.append(values[i]);
+				}
+			}
+			return sb.append('}');
+		}
+
+		private static void appendEscaped(StringBuilder sb, String value) {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"' || c == '\\') {
+					sb.append('\\').append(c);
+				} else if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Logs every received message, enabled by logMessages.
+ */
+public class LogMessageSink implements MessageSink {
+
+	private static final Logger logger = Logger.getLogger(ResponseHandler.class
+			.getName());
+
+	public void open(WarehouseConfig wsConfig) {
+	}
+
+	public void onMessages(List<ResponseMessage> batch) {
+		for (ResponseMessage message : batch) {
+			logger.info(message.getRawText());
+		}
+	}
+
+	public boolean isBackedUp() {
+		return false;
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+
+import java.util.List;
+
+/**
+ * Receives the decoded messages of the Warehouse response streams in batches.
+ *
+ * Sinks are loaded by {@link ResponseHandler} from the built-in log and disk
+ * writers, from META-INF/services/gov.usdot.cv.whtools.client.handler.MessageSink
+ * entries on the classpath and from the messageSinks configuration list.
+ * A sink needs a public no-argument constructor.
+ *
+ * Batches are delivered from the response writer threads. The messages of one
+ * session always arrive in order on the same thread, but different sessions
+ * may be delivered concurrently, so implementations must be thread safe.
+ */
+public interface MessageSink {
+
+	void open(WarehouseConfig wsConfig) throws Exception;
+
+	/**
+	 * Called with a batch of messages in the order they were received. The
+	 * list and the messages must not be kept after the call returns.
+	 */
+	void onMessages(List<ResponseMessage> batch);
+
+	/**
+	 * Backpressure signal. While any sink returns true the response writers
+	 * stop delivering batches, which in turn lets the response queues fill up
+	 * and the responseOverflowPolicy take effect.
+	 */
+	boolean isBackedUp();
+
+	void close();
+}
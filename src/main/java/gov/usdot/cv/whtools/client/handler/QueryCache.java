@@ -0,0 +1,400 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.TextNode;
+
+/**
+ * Stores the results of executed queries on disk, keyed by the query JSON with
+ * its fields sorted. Results of queries whose endDate lies further back than
+ * queryCacheImmutableMinutes never change and are kept until evicted, all
+ * others expire after queryCacheTtlMinutes. The cache is bounded to
+ * queryCacheMaxBytes by evicting the least recently used results.
+ */
+public class QueryCache {
+
+	private static final Logger logger = Logger.getLogger(QueryCache.class
+			.getName());
+
+	private static final String CACHE_SUFFIX = ".cache";
+	private static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private File directory;
+	private long maxBytes;
+	private long ttlMillis;
+	private long immutableMillis;
+	// Access ordered, the first entry is the least recently used
+	private LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+	private long totalBytes;
+	private long hits;
+	private long misses;
+
+	public QueryCache(WarehouseConfig wsConfig) {
+		this.directory = new File(wsConfig.queryCacheDir);
+		this.maxBytes = wsConfig.queryCacheMaxBytes;
+		this.ttlMillis = TimeUnit.MINUTES.toMillis(wsConfig.queryCacheTtlMinutes);
+		this.immutableMillis = TimeUnit.MINUTES.toMillis(wsConfig.queryCacheImmutableMinutes);
+		if (!directory.exists())
+			directory.mkdirs();
+		loadIndex();
+	}
+
+	public static boolean isEnabled(WarehouseConfig wsConfig) {
+		return wsConfig.queryCacheMaxBytes > 0;
+	}
+
+	/**
+	 * Returns the cached result of the query or null if it is not cached or has expired.
+	 */
+	public synchronized CachedResult get(JsonNode query) {
+		String name = fileName(query);
+		Entry entry = entries.get(name);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		if (isExpired(entry)) {
+			remove(name);
+			misses++;
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry.file)));
+			CachedResult result = readResult(in);
+			if (!result.key.equals(normalize(query))) {
+				// Hash collision, treat as a miss and let the new result replace it
+				misses++;
+				return null;
+			}
+			entry.file.setLastModified(System.currentTimeMillis());
+			hits++;
+			return result;
+		} catch (IOException e) {
+			logger.warn("Failed to read cached query result " + entry.file.getAbsolutePath(), e);
+			remove(name);
+			misses++;
+			return null;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	public synchronized void put(JsonNode query, String messageTypePrefix, String resultEncoding, String start,
+			List<String> records, String stop) {
+		String name = fileName(query);
+		CachedResult result = new CachedResult();
+		result.key = normalize(query);
+		result.created = System.currentTimeMillis();
+		result.immutable = isHistorical(query, result.created);
+		result.messageTypePrefix = messageTypePrefix;
+		result.resultEncoding = resultEncoding;
+		result.start = start;
+		result.records = records;
+		result.stop = stop;
+		File file = new File(directory, name);
+		File tmp = new File(directory, name + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			writeResult(out, result);
+			out.close();
+			out = null;
+			if (tmp.length() > maxBytes) {
+				tmp.delete();
+				return;
+			}
+			Entry replaced = entries.remove(name);
+			if (replaced != null)
+				totalBytes -= replaced.size;
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			logger.warn("Failed to cache query result in " + file.getAbsolutePath(), e);
+			tmp.delete();
+			return;
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		add(name, new Entry(file, file.length(), result.created, result.immutable));
+		evict();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getSize() {
+		return totalBytes;
+	}
+
+	/**
+	 * A query is historical when its endDate lies before the immutable horizon.
+	 * Queries without an endDate are open ended and may still gain records.
+	 */
+	private boolean isHistorical(JsonNode query, long now) {
+		JsonNode endDate = query.get("endDate");
+		if (endDate == null)
+			return false;
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+		sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+		try {
+			return sdf.parse(endDate.asText()).getTime() < now - immutableMillis;
+		} catch (ParseException e) {
+			return false;
+		}
+	}
+
+	private boolean isExpired(Entry entry) {
+		return !entry.immutable && System.currentTimeMillis() - entry.created > ttlMillis;
+	}
+
+	private void loadIndex() {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		// Oldest access first, hits touch the file's modification time
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+			}
+		});
+		for (File file : files) {
+			if (file.getName().endsWith(CACHE_SUFFIX + ".tmp")) {
+				file.delete();
+			}
+			if (!file.getName().endsWith(CACHE_SUFFIX))
+				continue;
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				if (in.readInt() != VERSION)
+					throw new IOException("Unknown cache file version");
+				long created = in.readLong();
+				boolean immutable = in.readBoolean();
+				add(file.getName(), new Entry(file, file.length(), created, immutable));
+			} catch (IOException e) {
+				logger.warn("Removing unreadable cached query result " + file.getAbsolutePath(), e);
+				IOUtils.closeQuietly(in);
+				in = null;
+				file.delete();
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
+		evict();
+		logger.info("Query cache " + directory.getAbsolutePath() + " holds " + entries.size() + " result(s), "
+				+ totalBytes + " bytes");
+	}
+
+	private void add(String name, Entry entry) {
+		entries.put(name, entry);
+		totalBytes += entry.size;
+	}
+
+	private void remove(String name) {
+		Entry entry = entries.remove(name);
+		if (entry != null) {
+			totalBytes -= entry.size;
+			entry.file.delete();
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next().getValue();
+			if (totalBytes <= maxBytes && !isExpired(entry))
+				continue;
+			it.remove();
+			totalBytes -= entry.size;
+			entry.file.delete();
+		}
+	}
+
+	private static String fileName(JsonNode query) {
+		return DigestUtils.sha256Hex(normalize(query)) + CACHE_SUFFIX;
+	}
+
+	/**
+	 * Serializes the query with the fields of every object sorted by name.
+	 */
+	static String normalize(JsonNode node) {
+		StringBuilder sb = new StringBuilder();
+		appendNormalized(sb, node);
+		return sb.toString();
+	}
+
+	private static void appendNormalized(StringBuilder sb, JsonNode node) {
+		if (node.isObject()) {
+			TreeMap<String,JsonNode> fields = new TreeMap<String,JsonNode>();
+			Iterator<Map.Entry<String,JsonNode>> it = node.getFields();
+			while (it.hasNext()) {
+				Map.Entry<String,JsonNode> field = it.next();
+				fields.put(field.getKey(), field.getValue());
+			}
+			sb.append('{');
+			boolean first = true;
+			for (Map.Entry<String,JsonNode> field : fields.entrySet()) {
+				if (!first)
+					sb.append(',');
+				first = false;
+				sb.append(TextNode.valueOf(field.getKey()).toString()).append(':');
+				appendNormalized(sb, field.getValue());
+			}
+			sb.append('}');
+		} else if (node.isArray()) {
+			sb.append('[');
+			for (int i = 0; i < node.size(); i++) {
+				if (i > 0)
+					sb.append(',');
+				appendNormalized(sb, node.get(i));
+			}
+			sb.append(']');
+		} else {
+			sb.append(node.toString());
+		}
+	}
+
+	private static void writeResult(DataOutputStream out, CachedResult result) throws IOException {
+		out.writeInt(VERSION);
+		out.writeLong(result.created);
+		out.writeBoolean(result.immutable);
+		writeString(out, result.key);
+		writeString(out, result.messageTypePrefix);
+		writeString(out, result.resultEncoding);
+		writeString(out, result.start);
+		writeString(out, result.stop);
+		out.writeInt(result.records.size());
+		for (String record : result.records) {
+			writeString(out, record);
+		}
+	}
+
+	private static CachedResult readResult(DataInputStream in) throws IOException {
+		if (in.readInt() != VERSION)
+			throw new IOException("Unknown cache file version");
+		CachedResult result = new CachedResult();
+		result.created = in.readLong();
+		result.immutable = in.readBoolean();
+		result.key = readString(in);
+		result.messageTypePrefix = readString(in);
+		result.resultEncoding = readString(in);
+		result.start = readString(in);
+		result.stop = readString(in);
+		int count = in.readInt();
+		result.records = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			result.records.add(readString(in));
+		}
+		return result;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static class Entry {
+		private File file;
+		private long size;
+		private long created;
+		private boolean immutable;
+
+		private Entry(File file, long size, long created, boolean immutable) {
+			this.file = file;
+			this.size = size;
+			this.created = created;
+			this.immutable = immutable;
+		}
+	}
+
+	/**
+	 * The messages received for a cached query, records as received before decoding.
+	 */
+	public static class CachedResult {
+		private String key;
+		private long created;
+		private boolean immutable;
+		private String messageTypePrefix;
+		private String resultEncoding;
+		private String start;
+		private String stop;
+		private List<String> records;
+
+		public String getMessageTypePrefix() {
+			return messageTypePrefix;
+		}
+
+		public String getResultEncoding() {
+			return resultEncoding;
+		}
+
+		public String getStart() {
+			return start;
+		}
+
+		public String getStop() {
+			return stop;
+		}
+
+		public List<String> getRecords() {
+			return records;
+		}
+
+		public long getCreated() {
+			return created;
+		}
+	}
+}
@@ -0,0 +1,649 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import gov.usdot.cv.whtools.client.WarehouseClient;
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+import gov.usdot.cv.whtools.client.handler.QueryCache.CachedResult;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Runs one logical QUERY: as time slices and/or skip/limit pages, each page on
+ * its own reserved session, and merges their results in order into a single
+ * response stream named query-<n>. See docs/QUERY_README.
+ */
+public class QueryExecutor {
+
+	private static final Logger logger = Logger.getLogger(QueryExecutor.class
+			.getName());
+
+	private static final String QUERY_TAG = "QUERY:";
+	private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+	private static final long POLL_MILLIS = 1000;
+	private static final long BACKED_UP_WAIT_MILLIS = 5;
+	private static final int MAX_PAGE_ATTEMPTS = 3;
+
+	private WarehouseConfig wsConfig;
+	private WarehouseClient wsClient;
+	private ResponseHandler handler;
+	private QueryCache cache;
+	private ObjectMapper mapper = new ObjectMapper();
+	private AtomicInteger queryCounter = new AtomicInteger();
+	private ExecutorService executor;
+
+	public QueryExecutor(WarehouseConfig wsConfig, WarehouseClient wsClient, ResponseHandler handler) {
+		this.wsConfig = wsConfig;
+		this.wsClient = wsClient;
+		this.handler = handler;
+		if (QueryCache.isEnabled(wsConfig)) {
+			this.cache = new QueryCache(wsConfig);
+		}
+		// One logical query at a time, each one already uses every session it can get
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "QueryExecutor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public static boolean isEnabled(WarehouseConfig wsConfig) {
+		if (wsConfig.queryPageSize <= 0 && wsConfig.queryTimeSliceMinutes <= 0 && !QueryCache.isEnabled(wsConfig))
+			return false;
+		if (wsConfig.sessionPoolSize < 2) {
+			// Every page needs a session of its own next to the one always left unreserved
+			logger.warn("Query paging, slicing and caching need a sessionPoolSize of at least 2, queries are sent unchanged");
+			return false;
+		}
+		return true;
+	}
+
+	public static boolean isQuery(String request) {
+		return request.trim().startsWith(QUERY_TAG);
+	}
+
+	/**
+	 * Queues the query for execution and returns immediately.
+	 */
+	public void submit(final String request) {
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					execute(request);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (Exception e) {
+					logger.error("Query failed: " + request, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs the query in the calling thread and returns once all pages have
+	 * been delivered to the message sinks.
+	 */
+	public void execute(String request) throws IOException, InterruptedException {
+		String json = request.trim().substring(QUERY_TAG.length());
+		ObjectNode template = (ObjectNode) mapper.readTree(json);
+		new LogicalQuery("query-" + queryCounter.incrementAndGet(), template).run();
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private static SimpleDateFormat newDateFormat() {
+		SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+		sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return sdf;
+	}
+
+	private static class Slice {
+		private String startDate;
+		private String startDateOperator;
+		private String endDate;
+		private String endDateOperator;
+	}
+
+	private class LogicalQuery {
+		private String queryId;
+		private ObjectNode template;
+		private List<Slice> slices = new ArrayList<Slice>();
+		private int pageSize;
+		private int firstSkip;
+		private int totalLimit;
+
+		// Issuing state
+		private int sliceIndex;
+		private int nextSkip;
+		private int nextSequence;
+		private Page pendingPage;
+		private LinkedList<Page> retries = new LinkedList<Page>();
+		// Abandoned pages that still hold their session
+		private List<Page> abandoned = new ArrayList<Page>();
+		private boolean issued;
+		private List<Page> inFlight = new ArrayList<Page>();
+		private LinkedBlockingQueue<Page> completed = new LinkedBlockingQueue<Page>();
+
+		// Merging state
+		private TreeMap<Integer,Page> finished = new TreeMap<Integer,Page>();
+		private int nextToEmit;
+		private ResponseStream mergedStream;
+		private ResponseMessage lastStop;
+		private List<ResponseMessage> batch = new ArrayList<ResponseMessage>();
+
+		// Progress
+		private long startTime = System.currentTimeMillis();
+		private int pagesDone;
+		private int pagesFailed;
+		private int pagesRetried;
+		private int pagesCached;
+		private long records;
+		private long latencyTotal;
+		private long latencyMax;
+
+		private LogicalQuery(String queryId, ObjectNode template) {
+			this.queryId = queryId;
+			this.template = template;
+			this.pageSize = wsConfig.queryPageSize;
+			this.firstSkip = template.has("skip") ? template.get("skip").asInt() : 0;
+			this.totalLimit = template.has("limit") ? template.get("limit").asInt() : 0;
+			buildSlices();
+			this.nextSkip = firstSkip;
+		}
+
+		private void buildSlices() {
+			Slice whole = new Slice();
+			whole.startDate = getText("startDate");
+			whole.startDateOperator = getText("startDateOperator");
+			whole.endDate = getText("endDate");
+			whole.endDateOperator = getText("endDateOperator");
+			if (wsConfig.queryTimeSliceMinutes <= 0) {
+				slices.add(whole);
+				return;
+			}
+			if (firstSkip > 0 || totalLimit > 0) {
+				// skip and limit apply to the whole query, not to each slice of it
+				logger.warn(queryId + " has skip or limit, it is not split into time slices");
+				slices.add(whole);
+				return;
+			}
+			if (whole.startDate == null || whole.endDate == null) {
+				logger.warn(queryId + " has no startDate and endDate, it is not split into time slices");
+				slices.add(whole);
+				return;
+			}
+			SimpleDateFormat sdf = newDateFormat();
+			long start, end;
+			try {
+				start = sdf.parse(whole.startDate).getTime();
+				end = sdf.parse(whole.endDate).getTime();
+			} catch (ParseException e) {
+				logger.warn(queryId + " has an invalid date, it is not split into time slices", e);
+				slices.add(whole);
+				return;
+			}
+			long sliceMillis = TimeUnit.MINUTES.toMillis(wsConfig.queryTimeSliceMinutes);
+			for (long from = start; from < end; from += sliceMillis) {
+				long to = Math.min(from + sliceMillis, end);
+				Slice slice = new Slice();
+				slice.startDate = sdf.format(new Date(from));
+				slice.startDateOperator = from == start ? whole.startDateOperator : "GTE";
+				slice.endDate = sdf.format(new Date(to));
+				slice.endDateOperator = to == end ? whole.endDateOperator : "LT";
+				slices.add(slice);
+			}
+			if (slices.isEmpty()) {
+				slices.add(whole);
+			}
+			// Results are ordered newest first unless orderByOrder asks for ascending order
+			int order = template.has("orderByOrder") ? template.get("orderByOrder").asInt() : -1;
+			if (order < 0) {
+				Collections.reverse(slices);
+			}
+		}
+
+		private String getText(String field) {
+			JsonNode node = template.get(field);
+			return node == null ? null : node.asText();
+		}
+
+		private void run() throws IOException, InterruptedException {
+			logger.info("Executing " + queryId + " in " + slices.size() + " time slice(s)"
+					+ (pageSize > 0 ? " with pages of " + pageSize : "") + ": " + template);
+			try {
+				while (true) {
+					issuePages();
+					if (inFlight.isEmpty()) {
+						if (!hasMorePages())
+							break;
+						if (holdsSessions()) {
+							Thread.sleep(POLL_MILLIS);
+							continue;
+						}
+						if (!issued) {
+							sendUnpaged();
+							return;
+						}
+						throw new IOException("No session is open to execute " + queryId);
+					}
+					Page page = completed.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if (page != null) {
+						pageDone(page);
+					}
+					expireTimedOutPages();
+				}
+				emitStop();
+			} finally {
+				for (Page page : inFlight) {
+					release(page);
+				}
+			}
+			long latencyAvg = pagesDone == 0 ? 0 : latencyTotal / pagesDone;
+			logger.info(queryId + " finished: " + pagesDone + " page(s), " + pagesFailed + " failed, " + pagesRetried
+					+ " retried, " + pagesCached + " from cache, " + records
+					+ " record(s) in " + (System.currentTimeMillis() - startTime) + " ms, page latency avg "
+					+ latencyAvg + " ms max " + latencyMax + " ms");
+			if (pagesFailed > 0) {
+				throw new IOException(queryId + " is incomplete, " + pagesFailed + " page(s) failed after "
+						+ MAX_PAGE_ATTEMPTS + " attempts");
+			}
+		}
+
+		/**
+		 * Sends the query as it is, answered on the session's own response
+		 * stream, when no session can be reserved to page on.
+		 */
+		private void sendUnpaged() throws IOException {
+			logger.warn("No session is free to page " + queryId + " on, sending it unpaged");
+			wsClient.send(QUERY_TAG + template.toString());
+		}
+
+		/**
+		 * True while an abandoned page has not yet released its session, which
+		 * then becomes free for the pages still to be sent.
+		 */
+		private boolean holdsSessions() {
+			Iterator<Page> pages = abandoned.iterator();
+			while (pages.hasNext()) {
+				Page page = pages.next();
+				synchronized (page) {
+					if (page.sessionId == null)
+						pages.remove();
+				}
+			}
+			return !abandoned.isEmpty();
+		}
+
+		private boolean hasMorePages() {
+			return pendingPage != null || !retries.isEmpty() || sliceIndex < slices.size();
+		}
+
+		private void issuePages() {
+			while (inFlight.size() < wsConfig.queryParallelism && hasMorePages()) {
+				// A pending page already missed the cache and only waits for a session
+				Page page = pendingPage;
+				pendingPage = null;
+				if (page == null && !retries.isEmpty()) {
+					page = retries.poll();
+				} else if (page == null) {
+					page = nextPage();
+					if (cache != null && loadCached(page)) {
+						issued = true;
+						inFlight.add(page);
+						page.complete();
+						continue;
+					}
+				}
+				String sessionId = wsClient.reserveSession();
+				if (sessionId == null) {
+					pendingPage = page;
+					return;
+				}
+				page.sessionId = sessionId;
+				page.sentTime = System.currentTimeMillis();
+				handler.captureSession(sessionId, page);
+				inFlight.add(page);
+				issued = true;
+				try {
+					wsClient.sendToSession(sessionId, page.request);
+				} catch (IOException e) {
+					page.fail("send failed: " + e.getMessage());
+				}
+			}
+		}
+
+		private boolean loadCached(Page page) {
+			CachedResult result = cache.get(page.query);
+			if (result == null)
+				return false;
+			ResponseStream stream = handler.getStream(queryId, result.getMessageTypePrefix(), result.getResultEncoding());
+			long now = System.currentTimeMillis();
+			page.cached = true;
+			page.start = new ResponseMessage(ResponseMessage.Type.START, queryId, stream, result.getStart(), result.getStart(), now);
+			for (String record : result.getRecords()) {
+				page.data.add(new ResponseMessage(ResponseMessage.Type.DATA, queryId, stream, record, stream.project(record), now));
+			}
+			page.stop = new ResponseMessage(ResponseMessage.Type.STOP, queryId, stream, result.getStop(), result.getStop(), now);
+			return true;
+		}
+
+		private void storeCached(Page page) {
+			if (page.start == null || page.start.getStream() == null || page.stop == null)
+				return;
+			List<String> records = new ArrayList<String>(page.data.size());
+			for (ResponseMessage message : page.data) {
+				records.add(message.getRawText());
+			}
+			ResponseStream stream = page.start.getStream();
+			cache.put(page.query, stream.getMessageTypePrefix(), stream.getResultEncoding(), page.start.getRawText(),
+					records, page.stop.getRawText());
+		}
+
+		private Page nextPage() {
+			Slice slice = slices.get(sliceIndex);
+			ObjectNode node = mapper.createObjectNode();
+			node.putAll(template);
+			if (slice.startDate != null) {
+				node.put("startDate", slice.startDate);
+				if (slice.startDateOperator != null)
+					node.put("startDateOperator", slice.startDateOperator);
+			}
+			if (slice.endDate != null) {
+				node.put("endDate", slice.endDate);
+				if (slice.endDateOperator != null)
+					node.put("endDateOperator", slice.endDateOperator);
+			}
+			Page page = new Page(nextSequence++, sliceIndex);
+			if (pageSize > 0) {
+				page.skip = nextSkip;
+				page.limit = pageSize;
+				if (totalLimit > 0) {
+					page.limit = Math.min(pageSize, firstSkip + totalLimit - nextSkip);
+				}
+				node.put("skip", page.skip);
+				node.put("limit", page.limit);
+				nextSkip += page.limit;
+				if (totalLimit > 0 && nextSkip >= firstSkip + totalLimit) {
+					nextSlice();
+				}
+			} else {
+				nextSlice();
+			}
+			page.query = node;
+			page.request = QUERY_TAG + node.toString();
+			page.sentTime = System.currentTimeMillis();
+			return page;
+		}
+
+		private void nextSlice() {
+			sliceIndex++;
+			nextSkip = firstSkip;
+		}
+
+		private void pageDone(Page page) throws InterruptedException {
+			if (!inFlight.remove(page))
+				return;
+			if (page.abandoned) {
+				// Its response may still be streaming, the page keeps the session until it has reconnected
+				synchronized (page) {
+					if (page.sessionId != null) {
+						abandoned.add(page);
+						wsClient.reopenSession(page.sessionId);
+					}
+				}
+			} else {
+				release(page);
+			}
+			long latency = System.currentTimeMillis() - page.sentTime;
+			latencyTotal += latency;
+			latencyMax = Math.max(latencyMax, latency);
+			if (page.error != null && page.attempt < MAX_PAGE_ATTEMPTS) {
+				pagesRetried++;
+				logger.warn(queryId + " page " + page.sequence + " failed, retrying (attempt " + (page.attempt + 1)
+						+ " of " + MAX_PAGE_ATTEMPTS + "): " + page.error);
+				retries.add(page.retry());
+				return;
+			}
+			pagesDone++;
+			records += page.data.size();
+			if (page.error != null) {
+				pagesFailed++;
+				logger.error(queryId + " page " + page.sequence + " failed after " + page.attempt + " attempt(s): " + page.error);
+				if (page.slice == sliceIndex) {
+					// Without a page coming back short the slice would be paged forever
+					nextSlice();
+				}
+			} else if (page.cached) {
+				pagesCached++;
+			} else if (cache != null) {
+				storeCached(page);
+			}
+			if (page.error == null && pageSize > 0 && page.slice == sliceIndex && page.data.size() < page.limit) {
+				// A short page is the end of its slice, later pages issued for it come back empty
+				nextSlice();
+			}
+			logger.info(queryId + " page " + page.sequence + " (slice " + page.slice + ", skip " + page.skip + ") "
+					+ (page.cached ? "from cache" : "on " + page.sessionId) + ": " + page.data.size() + " record(s) in "
+					+ latency + " ms, " + pagesDone + " page(s) and " + records + " record(s) done, " + inFlight.size() + " in flight");
+			finished.put(page.sequence, page);
+			emitFinishedPages();
+		}
+
+		private void expireTimedOutPages() {
+			long timeout = TimeUnit.SECONDS.toMillis(wsConfig.queryPageTimeoutSeconds);
+			long now = System.currentTimeMillis();
+			for (Page page : inFlight) {
+				if (!page.cached && now - page.sentTime > timeout) {
+					page.abandon("no STOP: within " + wsConfig.queryPageTimeoutSeconds + " seconds");
+				}
+			}
+		}
+
+		private void release(Page page) {
+			if (page.sessionId == null)
+				return;
+			handler.releaseSession(page.sessionId);
+			wsClient.releaseSession(page.sessionId);
+		}
+
+		private void emitFinishedPages() throws InterruptedException {
+			Iterator<Page> pages = finished.values().iterator();
+			while (pages.hasNext()) {
+				Page page = pages.next();
+				if (page.sequence != nextToEmit)
+					break;
+				pages.remove();
+				nextToEmit++;
+				if (mergedStream == null && page.start != null && page.start.getStream() != null) {
+					ResponseStream stream = page.start.getStream();
+					mergedStream = handler.getStream(queryId, stream.getMessageTypePrefix(), stream.getResultEncoding());
+					emit(page.start);
+				}
+				if (mergedStream != null) {
+					for (ResponseMessage message : page.data) {
+						emit(message);
+					}
+				}
+				if (page.stop != null) {
+					lastStop = page.stop;
+				}
+			}
+			deliver();
+		}
+
+		private void emitStop() throws InterruptedException {
+			if (mergedStream != null && lastStop != null) {
+				emit(lastStop);
+			}
+			deliver();
+		}
+
+		private void emit(ResponseMessage message) throws InterruptedException {
+			batch.add(new ResponseMessage(message.getType(), queryId, mergedStream, message.getRawText(),
+					message.getText(), message.getReceivedTime()));
+			if (batch.size() >= wsConfig.sinkBatchSize) {
+				deliver();
+			}
+		}
+
+		private void deliver() throws InterruptedException {
+			if (batch.isEmpty())
+				return;
+			while (handler.isBackedUp()) {
+				Thread.sleep(BACKED_UP_WAIT_MILLIS);
+			}
+			handler.deliver(batch);
+			batch = new ArrayList<ResponseMessage>();
+		}
+
+		/**
+		 * Collects the responses of one page from its reserved session.
+		 */
+		private class Page implements MessageSink {
+			private int sequence;
+			private int slice;
+			private String sessionId;
+			private ObjectNode query;
+			private String request;
+			private boolean cached;
+			private int skip;
+			private int limit;
+			private long sentTime;
+			private ResponseMessage start;
+			private ResponseMessage stop;
+			private List<ResponseMessage> data = new ArrayList<ResponseMessage>();
+			private volatile String error;
+			private boolean done;
+			private int attempt = 1;
+			// Timed out, the rest of its response is discarded
+			private boolean abandoned;
+
+			private Page(int sequence, int slice) {
+				this.sequence = sequence;
+				this.slice = slice;
+			}
+
+			/**
+			 * The same page, to be sent again.
+			 */
+			private Page retry() {
+				Page page = new Page(sequence, slice);
+				page.query = query;
+				page.request = request;
+				page.skip = skip;
+				page.limit = limit;
+				page.attempt = attempt + 1;
+				return page;
+			}
+
+			public void open(WarehouseConfig wsConfig) {
+			}
+
+			public synchronized void onMessages(List<ResponseMessage> messages) {
+				for (ResponseMessage message : messages) {
+					if (abandoned) {
+						discard(message);
+						continue;
+					}
+					if (done)
+						return;
+					switch (message.getType()) {
+					case START:
+						start = message;
+						break;
+					case DATA:
+						data.add(message);
+						break;
+					case STOP:
+						stop = message;
+						complete();
+						break;
+					case ERROR:
+						// The session still counts the query as open unless a STOP: follows
+						abandoned = true;
+						error = message.getRawText();
+						complete();
+						break;
+					default:
+						break;
+					}
+				}
+			}
+
+			private synchronized void fail(String reason) {
+				if (done)
+					return;
+				error = reason;
+				complete();
+			}
+
+			private synchronized void abandon(String reason) {
+				if (done)
+					return;
+				abandoned = true;
+				fail(reason);
+			}
+
+			/**
+			 * Drops what an abandoned page still receives. The session is
+			 * released once the late STOP: arrives, or the session has been
+			 * reopened and sends CONNECTED:.
+			 */
+			private void discard(ResponseMessage message) {
+				ResponseMessage.Type type = message.getType();
+				if (sessionId != null && (type == ResponseMessage.Type.STOP || type == ResponseMessage.Type.CONNECTED)) {
+					logger.info(queryId + " page " + sequence + " released " + sessionId + " after " + type);
+					release(this);
+					sessionId = null;
+				}
+			}
+
+			private void complete() {
+				done = true;
+				completed.offer(this);
+			}
+
+			public boolean isBackedUp() {
+				return false;
+			}
+
+			public void close() {
+			}
+		}
+	}
+}
@@ -14,15 +14,12 @@ package gov.usdot.cv.whtools.client.handler;
 
 
 import gov.usdot.cv.whtools.client.WarehouseClient;
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
 
 import java.io.File;
 import java.io.IOException;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.monitor.FileAlterationListener;
-import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
-import org.apache.commons.io.monitor.FileAlterationMonitor;
-import org.apache.commons.io.monitor.FileAlterationObserver;
 import org.apache.log4j.Logger;
 
 public class RequestHandler {
@@ -30,40 +27,40 @@ public class RequestHandler {
 	private static final Logger logger = Logger.getLogger(RequestHandler.class
 			.getName());
 	
+	private static final String SUBSCRIBE_TAG = "SUBSCRIBE:";
+	
 	private String watchDirectory;
-	private int pollingInterval = 2000;
 	private WarehouseClient wsClient;
+	private QueryExecutor queryExecutor;
+	private DirectoryWatcher watcher;
+
+	public RequestHandler(String watchDirectory, WarehouseClient wsClient, WarehouseConfig wsConfig) {
+		this(watchDirectory, wsClient, wsConfig, null);
+	}
 
-	public RequestHandler(String watchDirectory, WarehouseClient wsClient) {
+	/**
+	 * QUERY: files are handed to the query executor when one is given and sent
+	 * unchanged otherwise.
+	 */
+	public RequestHandler(String watchDirectory, WarehouseClient wsClient, WarehouseConfig wsConfig, QueryExecutor queryExecutor) {
 		this.watchDirectory = watchDirectory;
 		this.wsClient = wsClient;
+		this.queryExecutor = queryExecutor;
+		this.watcher = new DirectoryWatcher("requests", watchDirectory, wsConfig, new FileListener());
 	}
 
 	public void start() {
-		FileAlterationObserver observer = new FileAlterationObserver(this.watchDirectory);
-		FileAlterationMonitor monitor = new FileAlterationMonitor(this.pollingInterval);
-		FileAlterationListener listener = new FileListener();
-		observer.addListener(listener);
-		monitor.addObserver(observer);
-		try {
-			monitor.start();
-			logger.info("Watching for changes to query files in directory: " + new File(this.watchDirectory).getAbsolutePath());
-		} catch (Exception e) {
-			logger.info("DirectoryWatcher failed to start", e);
-		}
-
+		watcher.start();
+		logger.info("Watching for changes to query files in directory: " + new File(this.watchDirectory).getAbsolutePath());
 	}
 	
-	private class FileListener extends FileAlterationListenerAdaptor {
-		@Override
-		public void onFileCreate(File file) {
-			logger.info("File created: " + file.getAbsolutePath());
-			sendRequest(file);
-		}
-
-		@Override
-		public void onFileChange(File file) {
-			logger.info("File changed: " + file.getAbsolutePath());
+	public void stop() {
+		watcher.stop();
+	}
+	
+	private class FileListener implements DirectoryWatcher.Listener {
+		public void onFileReady(File file) {
+			logger.info("File ready: " + file.getAbsolutePath());
 			sendRequest(file);
 		}
 		
@@ -71,7 +68,14 @@ public class RequestHandler {
 			try {
 				String request = FileUtils.readFileToString(file);
 				logger.info("Sending request " + request);
-				wsClient.send(request);
+				if (request.trim().startsWith(SUBSCRIBE_TAG)) {
+					// Resending a subscription file must reach the session that owns the subscription
+					wsClient.send(request, file.getAbsolutePath());
+				} else if (queryExecutor != null && QueryExecutor.isQuery(request)) {
+					queryExecutor.submit(request);
+				} else {
+					wsClient.send(request);
+				}
 			} catch (IOException e) {
 				logger.error("Error reading request file ", e);
 			}
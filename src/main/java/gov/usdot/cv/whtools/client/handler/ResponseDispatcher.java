@@ -0,0 +1,469 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+import gov.usdot.cv.whtools.client.metrics.Gauge;
+import gov.usdot.cv.whtools.client.metrics.MetricsRegistry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Hands received messages from the WebSocket read threads to writer threads
+ * through bounded queues, one writer per session so its messages stay in order.
+ * The writers deliver them to the message sinks in batches of up to sinkBatchSize.
+ */
+public class ResponseDispatcher {
+
+	private static final Logger logger = Logger.getLogger(ResponseDispatcher.class
+			.getName());
+
+	public static final String OVERFLOW_BLOCK = "block";
+	public static final String OVERFLOW_DROP = "drop";
+	public static final String OVERFLOW_SPILL = "spill";
+	public static final String OVERFLOW_PAUSE = "pause";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long POLL_MILLIS = 100;
+	private static final long BACKED_UP_WAIT_MILLIS = 5;
+	private static final long STOP_TIMEOUT_MILLIS = 10000;
+
+	private ResponseHandler handler;
+	private String overflowPolicy;
+	private File spillDir;
+	private int batchSize;
+	private boolean pauseEnabled;
+	private List<Partition> partitions = new ArrayList<Partition>();
+	private volatile boolean running;
+
+	private final AtomicLong receivedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong spilledCount = new AtomicLong();
+
+	public ResponseDispatcher(WarehouseConfig wsConfig, ResponseHandler handler) {
+		this.handler = handler;
+		this.overflowPolicy = wsConfig.responseOverflowPolicy;
+		this.spillDir = new File(wsConfig.responseSpillDir);
+		this.batchSize = wsConfig.sinkBatchSize;
+		this.pauseEnabled = OVERFLOW_PAUSE.equalsIgnoreCase(overflowPolicy);
+		int capacity = Math.max(1, wsConfig.responseQueueCapacity / wsConfig.responseWriterThreads);
+		int highWatermark = Math.max(1, (int) ((long) capacity * wsConfig.responseQueueHighWatermark / 100));
+		int lowWatermark = Math.min(highWatermark - 1, (int) ((long) capacity * wsConfig.responseQueueLowWatermark / 100));
+		for (int i = 0; i < wsConfig.responseWriterThreads; i++) {
+			partitions.add(new Partition(i, capacity, highWatermark, lowWatermark));
+		}
+	}
+
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		if (OVERFLOW_SPILL.equalsIgnoreCase(overflowPolicy) && !spillDir.exists()) {
+			spillDir.mkdirs();
+		}
+		for (Partition partition : partitions) {
+			partition.thread = new Thread(partition, "ResponseWriter-" + partition.index);
+			partition.thread.setDaemon(true);
+			partition.thread.start();
+		}
+		MetricsRegistry registry = MetricsRegistry.getInstance();
+		registry.gauge("responseQueueDepth", new Gauge() {
+			public Number getValue() {
+				return getQueueDepth();
+			}
+		});
+		registry.gauge("responsesDropped", new Gauge() {
+			public Number getValue() {
+				return getDroppedCount();
+			}
+		});
+		registry.gauge("responsesSpilled", new Gauge() {
+			public Number getValue() {
+				return getSpilledCount();
+			}
+		});
+		logger.info("Response dispatcher started with " + partitions.size() + " writer thread(s) and overflow policy " + overflowPolicy);
+	}
+
+	public synchronized void stop() {
+		running = false;
+		long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+		for (Partition partition : partitions) {
+			Thread thread = partition.thread;
+			if (thread == null)
+				continue;
+			try {
+				thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+				if (thread.isAlive()) {
+					logger.warn("Response writer " + partition.index + " did not drain its queue within "
+							+ STOP_TIMEOUT_MILLIS + " ms, spilling the rest");
+					thread.interrupt();
+					thread.join(STOP_TIMEOUT_MILLIS);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				thread.interrupt();
+			}
+			partition.thread = null;
+		}
+		logger.info("Response dispatcher stopped. received=" + receivedCount.get() + " dropped=" + droppedCount.get()
+				+ " spilled=" + spilledCount.get());
+	}
+
+	/**
+	 * Called on the WebSocket read thread. Only blocks when the overflow policy
+	 * is block and the writer for this session has fallen behind.
+	 */
+	public void dispatch(String sessionId, String message) {
+		receivedCount.incrementAndGet();
+		Partition partition = partitionOf(sessionId);
+		ReceivedMessage received = new ReceivedMessage(sessionId, message);
+		try {
+			if (OVERFLOW_SPILL.equalsIgnoreCase(overflowPolicy)) {
+				partition.offerOrSpill(received);
+			} else if (OVERFLOW_DROP.equalsIgnoreCase(overflowPolicy) && !ResponseHandler.isControlMessage(message)) {
+				// Control messages are never dropped, losing a START: would corrupt the decoding of the whole stream
+				if (!partition.queue.offer(received)) {
+					droppedCount.incrementAndGet();
+				}
+			} else {
+				partition.queue.put(received);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * With the "pause" overflow policy, whether the queue of the session has
+	 * reached the high watermark and reading from it should stop. Messages
+	 * still arriving while it stops are queued in the room above the watermark.
+	 */
+	public boolean shouldPause(String sessionId) {
+		if (!pauseEnabled)
+			return false;
+		Partition partition = partitionOf(sessionId);
+		return partition.queue.size() >= partition.highWatermark;
+	}
+
+	/**
+	 * Runs resume on the writer thread once the queue of the session has
+	 * drained to the low watermark.
+	 */
+	public void resumeWhenDrained(String sessionId, Runnable resume) {
+		Partition partition = partitionOf(sessionId);
+		synchronized (partition.paused) {
+			partition.paused.add(resume);
+		}
+	}
+
+	public int getQueueDepth() {
+		int depth = 0;
+		for (Partition partition : partitions) {
+			depth += partition.queue.size();
+		}
+		return depth;
+	}
+
+	public long getReceivedCount() {
+		return receivedCount.get();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getSpilledCount() {
+		return spilledCount.get();
+	}
+
+	private Partition partitionOf(String sessionId) {
+		return partitions.get((sessionId.hashCode() & Integer.MAX_VALUE) % partitions.size());
+	}
+
+	private static class ReceivedMessage {
+		private String sessionId;
+		private String message;
+
+		private ReceivedMessage(String sessionId, String message) {
+			this.sessionId = sessionId;
+			this.message = message;
+		}
+	}
+
+	private class Partition implements Runnable {
+		private int index;
+		private ArrayBlockingQueue<ReceivedMessage> queue;
+		private int highWatermark;
+		private int lowWatermark;
+		// Resumes of the sessions that stopped reading until this queue drains
+		private List<Runnable> paused = new ArrayList<Runnable>();
+		private Thread thread;
+		private List<ReceivedMessage> received = new ArrayList<ReceivedMessage>();
+		private List<ResponseMessage> batch = new ArrayList<ResponseMessage>();
+		// While a spill file is open every new message goes to it so ordering is preserved
+		private File spillFile;
+		private DataOutputStream spillOut;
+		private long spillRecords;
+		private int spillSequence;
+
+		private Partition(int index, int capacity, int highWatermark, int lowWatermark) {
+			this.index = index;
+			this.queue = new ArrayBlockingQueue<ReceivedMessage>(capacity);
+			this.highWatermark = highWatermark;
+			this.lowWatermark = lowWatermark;
+		}
+
+		private void resumeIfDrained() {
+			List<Runnable> resumes;
+			synchronized (paused) {
+				if (paused.isEmpty() || queue.size() > lowWatermark)
+					return;
+				resumes = new ArrayList<Runnable>(paused);
+				paused.clear();
+			}
+			for (Runnable resume : resumes) {
+				try {
+					resume.run();
+				} catch (RuntimeException e) {
+					logger.error("Failed to resume reading", e);
+				}
+			}
+		}
+
+		private synchronized void offerOrSpill(ReceivedMessage received) {
+			if (spillOut == null && queue.offer(received))
+				return;
+			try {
+				if (spillOut == null) {
+					openSpillFile();
+					logger.warn("Response queue " + index + " is full, spilling to " + spillFile.getAbsolutePath());
+				}
+				writeRecord(spillOut, received);
+				spillRecords++;
+				spilledCount.incrementAndGet();
+			} catch (IOException e) {
+				droppedCount.incrementAndGet();
+				logger.error("Failed to spill received message, dropping it", e);
+			}
+		}
+
+		private void openSpillFile() throws IOException {
+			// Only created up front for the spill policy, stop spills with any policy
+			if (!spillDir.exists())
+				spillDir.mkdirs();
+			spillFile = new File(spillDir, "partition-" + index + "-" + (spillSequence++) + ".spill");
+			spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+			spillRecords = 0;
+		}
+
+		private synchronized boolean isSpilling() {
+			return spillOut != null;
+		}
+
+		/**
+		 * Swaps in a new spill file and returns the old one for replay, so
+		 * messages arriving during the replay stay behind the replayed ones.
+		 * Returns null and leaves spill mode once nothing is left to replay.
+		 */
+		private synchronized File rotateSpillFile() {
+			if (spillOut == null)
+				return null;
+			IOUtils.closeQuietly(spillOut);
+			spillOut = null;
+			File file = spillFile;
+			spillFile = null;
+			if (spillRecords == 0) {
+				file.delete();
+				return null;
+			}
+			try {
+				openSpillFile();
+			} catch (IOException e) {
+				logger.error("Failed to open spill file, new messages will bypass the spill", e);
+			}
+			return file;
+		}
+
+		public void run() {
+			while (running) {
+				try {
+					ReceivedMessage first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if (first != null) {
+						received.add(first);
+						queue.drainTo(received, batchSize - 1);
+						for (ReceivedMessage message : received) {
+							add(message);
+						}
+						received.clear();
+						deliver();
+					} else if (isSpilling()) {
+						replaySpill();
+					}
+					resumeIfDrained();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			drain();
+		}
+
+		/**
+		 * Delivers the messages still queued when the dispatcher stops, and
+		 * spills what is left if the writer is interrupted while doing so.
+		 */
+		private void drain() {
+			if (!Thread.currentThread().isInterrupted()) {
+				try {
+					ReceivedMessage message;
+					while ((message = queue.poll()) != null) {
+						add(message);
+						if (batch.size() >= batchSize)
+							deliver();
+					}
+					deliver();
+					if (isSpilling()) {
+						replaySpill();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			spillRemaining();
+		}
+
+		/**
+		 * Writes the messages this writer could not deliver to the spill file.
+		 */
+		private synchronized void spillRemaining() {
+			List<ReceivedMessage> remaining = new ArrayList<ReceivedMessage>();
+			for (ResponseMessage message : batch) {
+				remaining.add(new ReceivedMessage(message.getSessionId(), message.getRawText()));
+			}
+			batch.clear();
+			queue.drainTo(remaining);
+			if (remaining.isEmpty() && spillOut == null)
+				return;
+			try {
+				if (spillOut == null)
+					openSpillFile();
+				for (ReceivedMessage message : remaining) {
+					writeRecord(spillOut, message);
+					spilledCount.incrementAndGet();
+				}
+				spillOut.flush();
+				logger.warn("Left " + (spillRecords + remaining.size()) + " undelivered message(s) in "
+						+ spillFile.getAbsolutePath());
+			} catch (IOException e) {
+				droppedCount.addAndGet(remaining.size());
+				logger.error("Failed to spill " + remaining.size() + " undelivered message(s), dropping them", e);
+			} finally {
+				IOUtils.closeQuietly(spillOut);
+				spillOut = null;
+			}
+		}
+
+		private void replaySpill() {
+			File file;
+			while ((file = rotateSpillFile()) != null) {
+				logger.info("Replaying spilled messages from " + file.getAbsolutePath());
+				DataInputStream in = null;
+				try {
+					in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+					ReceivedMessage message;
+					while ((message = readRecord(in)) != null) {
+						add(message);
+						if (batch.size() >= batchSize)
+							deliver();
+					}
+				} catch (IOException e) {
+					logger.error("Failed to replay spill file " + file.getAbsolutePath(), e);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} finally {
+					IOUtils.closeQuietly(in);
+				}
+				try {
+					deliver();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				file.delete();
+			}
+			logger.info("Spilled messages for response queue " + index + " replayed");
+		}
+
+		private void add(ReceivedMessage message) {
+			try {
+				batch.add(handler.decode(message.sessionId, message.message));
+			} catch (RuntimeException e) {
+				logger.error("Failed to handle received message", e);
+			}
+		}
+
+		private void deliver() throws InterruptedException {
+			if (batch.isEmpty())
+				return;
+			while (running && handler.isBackedUp()) {
+				Thread.sleep(BACKED_UP_WAIT_MILLIS);
+			}
+			try {
+				handler.deliver(batch);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, ReceivedMessage received) throws IOException {
+		byte[] sessionId = received.sessionId.getBytes(UTF8);
+		byte[] message = received.message.getBytes(UTF8);
+		out.writeInt(sessionId.length);
+		out.write(sessionId);
+		out.writeInt(message.length);
+		out.write(message);
+	}
+
+	private static ReceivedMessage readRecord(DataInputStream in) throws IOException {
+		byte[] sessionId;
+		try {
+			sessionId = new byte[in.readInt()];
+		} catch (EOFException e) {
+			return null;
+		}
+		in.readFully(sessionId);
+		byte[] message = new byte[in.readInt()];
+		in.readFully(message);
+		return new ReceivedMessage(new String(sessionId, UTF8), new String(message, UTF8));
+	}
+}
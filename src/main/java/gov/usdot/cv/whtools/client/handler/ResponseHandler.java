@@ -13,38 +13,38 @@
 package gov.usdot.cv.whtools.client.handler;
 
 import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+import gov.usdot.cv.whtools.client.metrics.Counter;
+import gov.usdot.cv.whtools.client.metrics.MetricsRegistry;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.JsonProcessingException;
 import org.codehaus.jackson.map.ObjectMapper;
 
 public class ResponseHandler {
 
 	private static final Logger logger = Logger.getLogger(ResponseHandler.class
 			.getName());
+
+	private static final Counter decodeFailures = MetricsRegistry.getInstance().counter("decodeFailures");
 	
-	private static final String NEW_LINE = System.getProperty("line.separator");
 	private static final String CONNECTED_TAG = "CONNECTED:";
 	private static final String START_TAG = "START:";
 	private static final String STOP_TAG = "STOP:";
 	private static final String ERROR_TAG = "ERROR:";
+	private static final String DEFAULT_SESSION = "default";
+	public static final String BINARY_OUTPUT_FILES = "files";
+	public static final String BINARY_OUTPUT_SEGMENTS = "segments";
 	private static final Map<Integer,String> dialogIDPrefixLookup = new HashMap<Integer,String>();
-	private static int fileCounter = 0;
 	
 	static {
 		dialogIDPrefixLookup.put(-1, "all");
@@ -54,12 +54,14 @@ public class ResponseHandler {
 	}
 	
 	private WarehouseConfig wsConfig;
-	private SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss.SSS");
-	private FileOutputStream textFileOutStream;
-	
 	private ObjectMapper mapper = new ObjectMapper();
-	private String messageTypePrefix = "msg";
-	private String resultEncoding = "full";
+	// Streams keyed by session and request (dialogID and resultEncoding of the START:)
+	private ConcurrentHashMap<String,ResponseStream> streams = new ConcurrentHashMap<String,ResponseStream>();
+	// Data messages belong to the stream of the last START: received on their session
+	private ConcurrentHashMap<String,ResponseStream> currentStreams = new ConcurrentHashMap<String,ResponseStream>();
+	private List<MessageSink> sinks = new ArrayList<MessageSink>();
+	// Sessions whose messages go to a single sink instead of the configured sinks
+	private ConcurrentHashMap<String,MessageSink> capturedSessions = new ConcurrentHashMap<String,MessageSink>();
 	
 	public ResponseHandler(WarehouseConfig wsConfig) {
 		this.wsConfig = wsConfig;
@@ -68,123 +70,208 @@ public class ResponseHandler {
 			if (!dir.exists())
 				dir.mkdir();
 		}
+		loadSinks();
 	}
 	
-	public void handleMessage(String message) {
+	private void loadSinks() {
 		if (wsConfig.logMessages) {
-			logger.info(message);
+			openSink(new LogMessageSink());
 		}
-		
 		if (wsConfig.writeToDisk) {
-			writeMessageToDisk(message);
+			openSink(new TextFileSink());
+			if (wsConfig.binaryFiles) {
+				openSink(new BinaryFileSink());
+			}
+		}
+		for (MessageSink sink : ServiceLoader.load(MessageSink.class)) {
+			openSink(sink);
+		}
+		if (wsConfig.messageSinks != null) {
+			for (String className : wsConfig.messageSinks) {
+				try {
+					openSink((MessageSink) Class.forName(className).getDeclaredConstructor().newInstance());
+				} catch (Exception e) {
+					logger.error("Failed to load message sink " + className, e);
+				}
+			}
 		}
-		
-		// Add whatever additional processing you want here
 	}
 	
-	private void writeMessageToDisk(String message) {
-		if (message.startsWith(CONNECTED_TAG) || message.startsWith(START_TAG) || 
-			message.startsWith(STOP_TAG) || message.startsWith(ERROR_TAG)) {
-			if (message.startsWith(START_TAG)) {
-				processStartTag(message);
-			} else if (message.startsWith(ERROR_TAG)) {
-				logger.error(message);
-			}
-		} else {
-			OutputStream binaryOutputStream = null;
-			OutputStream textOutputStream = null;
+	private void openSink(MessageSink sink) {
+		try {
+			sink.open(wsConfig);
+			sinks.add(sink);
+			logger.info("Opened message sink " + sink.getClass().getName());
+		} catch (Exception e) {
+			logger.error("Failed to open message sink " + sink.getClass().getName(), e);
+		}
+	}
+	
+	public void handleMessage(String message) {
+		handleMessage(DEFAULT_SESSION, message);
+	}
+	
+	/**
+	 * May be called concurrently for different sessions, the messages of one
+	 * session must be delivered in order.
+	 */
+	public void handleMessage(String sessionId, String message) {
+		deliver(Collections.singletonList(decode(sessionId, message)));
+	}
+	
+	/**
+	 * Tracks the stream state of the session and turns the message into the
+	 * form handed to the sinks. Must be called in the order messages arrived.
+	 */
+	public ResponseMessage decode(String sessionId, String message) {
+		long receivedTime = System.currentTimeMillis();
+		if (message.startsWith(START_TAG)) {
+			ResponseStream stream = processStartTag(sessionId, message);
+			return new ResponseMessage(ResponseMessage.Type.START, sessionId, stream, message, message, receivedTime);
+		} else if (message.startsWith(STOP_TAG)) {
+			return new ResponseMessage(ResponseMessage.Type.STOP, sessionId, currentStreams.get(sessionId), message, message, receivedTime);
+		} else if (message.startsWith(ERROR_TAG)) {
+			logger.error(message);
+			return new ResponseMessage(ResponseMessage.Type.ERROR, sessionId, currentStreams.get(sessionId), message, message, receivedTime);
+		} else if (message.startsWith(CONNECTED_TAG)) {
+			return new ResponseMessage(ResponseMessage.Type.CONNECTED, sessionId, null, message, message, receivedTime);
+		}
+		ResponseStream stream = getCurrentStream(sessionId);
+		return new ResponseMessage(ResponseMessage.Type.DATA, sessionId, stream, message, stream.project(message), receivedTime);
+	}
+	
+	/**
+	 * Hands a batch of decoded messages to every sink. A failing sink is
+	 * logged and does not keep the batch from the others.
+	 */
+	public void deliver(List<ResponseMessage> batch) {
+		if (!capturedSessions.isEmpty()) {
+			batch = deliverCaptured(batch);
+			if (batch.isEmpty())
+				return;
+		}
+		for (MessageSink sink : sinks) {
 			try {
-				if (wsConfig.binaryFiles) {
-					if (resultEncoding.equalsIgnoreCase("full")) {
-						textOutputStream = getTextFileOutputStream("msg");
-						IOUtils.write(message + NEW_LINE, textOutputStream);
-					} else {
-						byte[] bytes = null;
-						if (resultEncoding.equalsIgnoreCase("hex")) {
-							try {
-								bytes = Hex.decodeHex(message.toCharArray());
-							} catch (DecoderException e) {
-								logger.error("Hex to byte conversion failed" + e);
-							}
-						} else if (resultEncoding.equalsIgnoreCase("base64")) {
-							bytes = Base64.decodeBase64(message);
-						} else {
-							logger.warn("Unexpected resultEncoding of " + resultEncoding);
-						}
-						
-						if (bytes != null) {
-							binaryOutputStream = getBinaryFileOutputStream(messageTypePrefix);
-							IOUtils.write(bytes, binaryOutputStream);
-						} else {
-							logger.warn("Failed to decode bytes, Not writing out file!");
-						}
-					}
-				} else {
-					textOutputStream = getTextFileOutputStream("msg");
-					IOUtils.write(message + NEW_LINE, textOutputStream);
-				}
-			} catch (IOException e) {
-				logger.error("Failed to write received message to disk", e);
-			} finally {
-				if (textOutputStream != null) {
-					try {
-						textOutputStream.flush();
-					} catch (IOException e) {
-						logger.warn(e);
-					}
-				}
-				if (binaryOutputStream != null) {
-					IOUtils.closeQuietly(binaryOutputStream);
-				}
+				sink.onMessages(batch);
+			} catch (RuntimeException e) {
+				logger.error("Message sink " + sink.getClass().getName() + " failed", e);
 			}
 		}
 	}
 	
-	private void processStartTag(String message) {
-		if (message.startsWith(START_TAG)) {
-			// default values in case parsing fails
-			messageTypePrefix = "msg";
-			resultEncoding = "full";
-			String jsonMessage = message.substring(START_TAG.length());
+	/**
+	 * Routes all further messages of the session to the given sink only, until
+	 * releaseSession is called. Used by the QueryExecutor to collect the pages
+	 * of a query on reserved sessions.
+	 */
+	public void captureSession(String sessionId, MessageSink sink) {
+		capturedSessions.put(sessionId, sink);
+	}
+	
+	public void releaseSession(String sessionId) {
+		capturedSessions.remove(sessionId);
+	}
+	
+	private List<ResponseMessage> deliverCaptured(List<ResponseMessage> batch) {
+		List<ResponseMessage> remaining = new ArrayList<ResponseMessage>(batch.size());
+		Map<MessageSink,List<ResponseMessage>> captured = new LinkedHashMap<MessageSink,List<ResponseMessage>>();
+		for (ResponseMessage message : batch) {
+			MessageSink sink = capturedSessions.get(message.getSessionId());
+			if (sink == null) {
+				remaining.add(message);
+				continue;
+			}
+			List<ResponseMessage> messages = captured.get(sink);
+			if (messages == null) {
+				messages = new ArrayList<ResponseMessage>();
+				captured.put(sink, messages);
+			}
+			messages.add(message);
+		}
+		for (Map.Entry<MessageSink,List<ResponseMessage>> entry : captured.entrySet()) {
 			try {
-				JsonNode rootNode = mapper.readTree(jsonMessage);
-				messageTypePrefix = dialogIDPrefixLookup.get(rootNode.get("dialogID").asInt());
-				resultEncoding = rootNode.get("resultEncoding").getTextValue();
-			} catch (JsonProcessingException e) {
-				logger.error(e);
-			} catch (IOException e) {
-				logger.error(e);
-			} catch (Exception e) {
-				logger.error(e);
+				entry.getKey().onMessages(entry.getValue());
+			} catch (RuntimeException e) {
+				logger.error("Message sink " + entry.getKey().getClass().getName() + " failed", e);
 			}
 		}
+		return remaining;
 	}
 	
-	private OutputStream getBinaryFileOutputStream(String prefix) {
-		FileOutputStream fos = null;
+	/**
+	 * True while any sink asks for delivery to pause.
+	 */
+	public boolean isBackedUp() {
+		for (MessageSink sink : sinks) {
+			if (sink.isBackedUp())
+				return true;
+		}
+		return false;
+	}
+	
+	public static boolean isControlMessage(String message) {
+		return message.startsWith(CONNECTED_TAG) || message.startsWith(START_TAG) || 
+			message.startsWith(STOP_TAG) || message.startsWith(ERROR_TAG);
+	}
+	
+	private ResponseStream processStartTag(String sessionId, String message) {
+		// default values in case parsing fails
+		String messageTypePrefix = "msg";
+		String resultEncoding = "full";
+		String jsonMessage = message.substring(START_TAG.length());
 		try {
-			String fileName = String.format("%s_%s_%s_%s.ber", prefix, sdf.format(new Date()), 
-					System.currentTimeMillis(), fileCounter++);
-			File f = new File(wsConfig.responseDir,fileName);
-			fos = new FileOutputStream(f);
-		} catch (FileNotFoundException e) {
-			logger.error("Failed to create binary output file", e);
+			JsonNode rootNode = mapper.readTree(jsonMessage);
+			String prefix = dialogIDPrefixLookup.get(rootNode.get("dialogID").asInt());
+			if (prefix != null)
+				messageTypePrefix = prefix;
+			String encoding = rootNode.get("resultEncoding").getTextValue();
+			if (encoding != null)
+				resultEncoding = encoding;
+		} catch (Exception e) {
+			decodeFailures.inc();
+			logger.error(e);
+		}
+		ResponseStream stream = getStream(sessionId, messageTypePrefix, resultEncoding);
+		currentStreams.put(sessionId, stream);
+		return stream;
+	}
+	
+	private ResponseStream getCurrentStream(String sessionId) {
+		ResponseStream stream = currentStreams.get(sessionId);
+		if (stream == null) {
+			// Data before any START: is written as full text, as before
+			stream = getStream(sessionId, "msg", "full");
+			currentStreams.put(sessionId, stream);
+		}
+		return stream;
+	}
+	
+	/**
+	 * Returns the stream of the given session and request, opening it on first
+	 * use. The session id may also name a logical stream such as a merged query.
+	 */
+	public ResponseStream getStream(String sessionId, String messageTypePrefix, String resultEncoding) {
+		String key = sessionId + "|" + messageTypePrefix + "|" + resultEncoding.toLowerCase();
+		ResponseStream stream = streams.get(key);
+		if (stream == null) {
+			stream = new ResponseStream(wsConfig, sessionId, messageTypePrefix, resultEncoding);
+			ResponseStream existing = streams.putIfAbsent(key, stream);
+			if (existing != null) {
+				stream = existing;
+			} else {
+				logger.info("Opened response stream " + stream.getName() + " with resultEncoding " + resultEncoding);
+			}
 		}
-		return fos;
+		return stream;
 	}
 	
-	private OutputStream getTextFileOutputStream(String prefix) {
-		if (textFileOutStream != null) {
-			return textFileOutStream;
-		} else {
+	public void close() {
+		for (MessageSink sink : sinks) {
 			try {
-				String fileName = String.format("%s_%s_%s.txt", prefix, sdf.format(new Date()), System.currentTimeMillis());
-				File f = new File(wsConfig.responseDir,fileName);
-				textFileOutStream = new FileOutputStream(f);
-			} catch (FileNotFoundException e) {
-				logger.error("Failed to create text output file", e);
+				sink.close();
+			} catch (RuntimeException e) {
+				logger.error("Failed to close message sink " + sink.getClass().getName(), e);
 			}
-			return textFileOutStream;
 		}
 	}
 }
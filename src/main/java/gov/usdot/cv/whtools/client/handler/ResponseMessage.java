@@ -0,0 +1,122 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import gov.usdot.cv.whtools.client.metrics.Counter;
+import gov.usdot.cv.whtools.client.metrics.MetricsRegistry;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+/**
+ * A message received from the Warehouse, as delivered to a {@link MessageSink}.
+ */
+public class ResponseMessage {
+
+	private static final Logger logger = Logger.getLogger(ResponseMessage.class
+			.getName());
+
+	private static final Counter decodeFailures = MetricsRegistry.getInstance().counter("decodeFailures");
+
+	public enum Type { CONNECTED, START, STOP, ERROR, DATA }
+
+	private Type type;
+	private String sessionId;
+	private ResponseStream stream;
+	private String rawText;
+	private String text;
+	private long receivedTime;
+	private byte[] bytes;
+	private boolean decoded;
+
+	public ResponseMessage(Type type, String sessionId, ResponseStream stream, String rawText, String text, long receivedTime) {
+		this.type = type;
+		this.sessionId = sessionId;
+		this.stream = stream;
+		this.rawText = rawText;
+		this.text = text;
+		this.receivedTime = receivedTime;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	/**
+	 * The stream this message belongs to, null for CONNECTED and ERROR messages
+	 * received before any START.
+	 */
+	public ResponseStream getStream() {
+		return stream;
+	}
+
+	/**
+	 * The message exactly as received.
+	 */
+	public String getRawText() {
+		return rawText;
+	}
+
+	/**
+	 * The message text, for "full" records reduced to fullRecordFields if configured.
+	 */
+	public String getText() {
+		return text;
+	}
+
+	public long getReceivedTime() {
+		return receivedTime;
+	}
+
+	public boolean isBinary() {
+		return type == Type.DATA && stream != null && !stream.getResultEncoding().equalsIgnoreCase("full");
+	}
+
+	/**
+	 * The decoded bytes of a hex or base64 data message, or null if the message
+	 * is not binary or fails to decode. Decoded on first use.
+	 */
+	public byte[] getBytes() {
+		if (!decoded) {
+			decoded = true;
+			if (isBinary()) {
+				bytes = decode();
+			}
+		}
+		return bytes;
+	}
+
+	private byte[] decode() {
+		String resultEncoding = stream.getResultEncoding();
+		if (resultEncoding.equalsIgnoreCase("hex")) {
+			try {
+				return Hex.decodeHex(rawText.toCharArray());
+			} catch (DecoderException e) {
+				decodeFailures.inc();
+				logger.error("Hex to byte conversion failed" + e);
+			}
+		} else if (resultEncoding.equalsIgnoreCase("base64")) {
+			return Base64.decodeBase64(rawText);
+		} else {
+			decodeFailures.inc();
+			logger.warn("Unexpected resultEncoding of " + resultEncoding);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+import gov.usdot.cv.whtools.client.handler.FullRecordDecoder.FullRecord;
+import gov.usdot.cv.whtools.client.metrics.Counter;
+import gov.usdot.cv.whtools.client.metrics.MetricsRegistry;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The decoding state of one request stream, i.e. the data messages that
+ * follow a START: on one session. Sinks key their output by the stream name
+ * so every stream writes to its own files.
+ */
+public class ResponseStream {
+
+	private static final Logger logger = Logger.getLogger(ResponseStream.class
+			.getName());
+
+	private static final Counter decodeFailures = MetricsRegistry.getInstance().counter("decodeFailures");
+
+	private String name;
+	private String sessionId;
+	private String messageTypePrefix;
+	private String resultEncoding;
+	private FullRecordDecoder recordDecoder;
+	private FullRecord record;
+	private StringBuilder projection;
+
+	public ResponseStream(WarehouseConfig wsConfig, String sessionId, String messageTypePrefix, String resultEncoding) {
+		this.name = messageTypePrefix + "_" + sessionId;
+		this.sessionId = sessionId;
+		this.messageTypePrefix = messageTypePrefix;
+		this.resultEncoding = resultEncoding;
+		if (resultEncoding.equalsIgnoreCase("full") && wsConfig.fullRecordFields != null
+				&& wsConfig.fullRecordFields.length > 0) {
+			this.recordDecoder = new FullRecordDecoder(wsConfig.fullRecordFields);
+			this.record = recordDecoder.newRecord();
+			this.projection = new StringBuilder(256);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public String getMessageTypePrefix() {
+		return messageTypePrefix;
+	}
+
+	public String getResultEncoding() {
+		return resultEncoding;
+	}
+
+	/**
+	 * Reduces a full record to the configured fullRecordFields, other messages
+	 * and records that fail to parse are returned unchanged.
+	 */
+	public synchronized String project(String message) {
+		if (recordDecoder == null)
+			return message;
+		try {
+			if (!recordDecoder.decode(message, record))
+				return message;
+		} catch (IOException e) {
+			decodeFailures.inc();
+			logger.warn("Failed to parse full record, writing it unchanged", e);
+			return message;
+		}
+		projection.setLength(0);
+		return record.appendJson(projection).toString();
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+import gov.usdot.cv.whtools.client.metrics.Counter;
+import gov.usdot.cv.whtools.client.metrics.MetricsRegistry;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes text messages one per line through a buffer. Writes are group
+ * committed every textFlushMessages messages or textFlushMillis ms, and the
+ * file rolls over by size or age into predictably named files, optionally
+ * gzip compressed.
+ */
+public class RollingTextWriter implements Closeable {
+
+	private static final Logger logger = Logger.getLogger(RollingTextWriter.class
+			.getName());
+
+	private static final Counter totalBytesWritten = MetricsRegistry.getInstance().counter("responseBytesWritten");
+
+	public static final String COMPRESSION_GZIP = "gzip";
+
+	private static final String NEW_LINE = System.getProperty("line.separator");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private File directory;
+	private String prefix;
+	private int flushMessages;
+	private long flushMillis;
+	private boolean fsync;
+	private long rollBytes;
+	private long rollMillis;
+	private boolean gzip;
+	private SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss.SSS");
+	private int fileCounter = 0;
+
+	private FileOutputStream fileOut;
+	private Writer writer;
+	private long fileOpened;
+	private long bytesWritten;
+	private int unflushedMessages;
+	private long lastFlush;
+	private ScheduledExecutorService flushTimer;
+
+	public RollingTextWriter(File directory, String prefix, WarehouseConfig wsConfig) {
+		this.directory = directory;
+		this.prefix = prefix;
+		this.flushMessages = wsConfig.textFlushMessages;
+		this.flushMillis = wsConfig.textFlushMillis;
+		this.fsync = wsConfig.textFsync;
+		this.rollBytes = wsConfig.textRollBytes;
+		this.rollMillis = TimeUnit.MINUTES.toMillis(wsConfig.textRollMinutes);
+		this.gzip = COMPRESSION_GZIP.equalsIgnoreCase(wsConfig.textCompression);
+		if (flushMillis > 0) {
+			// Commits the tail of a burst even when no further message arrives
+			flushTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "TextFlush-" + RollingTextWriter.this.prefix);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			flushTimer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					flushIfDue();
+				}
+			}, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized void write(String message) throws IOException {
+		long now = System.currentTimeMillis();
+		if (writer == null || (rollBytes > 0 && bytesWritten >= rollBytes)
+				|| (rollMillis > 0 && now - fileOpened >= rollMillis)) {
+			roll(now);
+		}
+		writer.write(message);
+		writer.write(NEW_LINE);
+		bytesWritten += message.length() + NEW_LINE.length();
+		totalBytesWritten.add(message.length() + NEW_LINE.length());
+		if (++unflushedMessages >= flushMessages) {
+			flush();
+		}
+	}
+
+	public synchronized void flush() throws IOException {
+		if (writer != null && unflushedMessages > 0) {
+			writer.flush();
+			if (fsync) {
+				fileOut.getChannel().force(false);
+			}
+		}
+		unflushedMessages = 0;
+		lastFlush = System.currentTimeMillis();
+	}
+
+	public synchronized void close() throws IOException {
+		if (flushTimer != null) {
+			flushTimer.shutdownNow();
+			flushTimer = null;
+		}
+		closeFile();
+	}
+
+	private synchronized void flushIfDue() {
+		if (unflushedMessages > 0 && System.currentTimeMillis() - lastFlush >= flushMillis) {
+			try {
+				flush();
+			} catch (IOException e) {
+				logger.warn("Failed to flush text output", e);
+			}
+		}
+	}
+
+	private void roll(long now) throws IOException {
+		closeFile();
+		String fileName = String.format("%s_%s_%s.txt", prefix, sdf.format(new Date(now)), fileCounter++);
+		if (gzip) {
+			fileName += ".gz";
+		}
+		File f = new File(directory, fileName);
+		fileOut = new FileOutputStream(f);
+		OutputStream out = gzip ? new GZIPOutputStream(fileOut, BUFFER_SIZE, true) : fileOut;
+		writer = new BufferedWriter(new OutputStreamWriter(out, UTF8), BUFFER_SIZE);
+		fileOpened = now;
+		bytesWritten = 0;
+		logger.info("Writing text messages to " + f.getAbsolutePath());
+	}
+
+	private void closeFile() throws IOException {
+		if (writer != null) {
+			flush();
+			// Closing the writer finishes the gzip trailer
+			writer.close();
+			writer = null;
+			fileOut = null;
+		}
+	}
+}
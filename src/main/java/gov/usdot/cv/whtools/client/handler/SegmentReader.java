@@ -0,0 +1,142 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Reads the records of a segment written by {@link SegmentWriter}, either in
+ * order with {@link #next()} or by position with {@link #get(int)}.
+ *
+ * Usage: SegmentReader <segment file> [record index]
+ * Prints every record (or just the given one) as its timestamp and hex encoding.
+ */
+public class SegmentReader implements Closeable {
+
+	private RandomAccessFile segment;
+	private RandomAccessFile index;
+	private FileChannel segmentChannel;
+	private FileChannel indexChannel;
+	private int recordCount;
+	private int nextRecord = 0;
+	private ByteBuffer entry = ByteBuffer.allocate(SegmentWriter.INDEX_ENTRY_SIZE);
+	private ByteBuffer length = ByteBuffer.allocate(4);
+
+	public SegmentReader(File segmentFile) throws IOException {
+		String name = segmentFile.getName();
+		if (!name.endsWith(SegmentWriter.SEGMENT_SUFFIX)) {
+			throw new IOException("Not a segment file: " + segmentFile.getAbsolutePath());
+		}
+		File indexFile = new File(segmentFile.getParentFile(),
+				name.substring(0, name.length() - SegmentWriter.SEGMENT_SUFFIX.length()) + SegmentWriter.INDEX_SUFFIX);
+		this.segment = new RandomAccessFile(segmentFile, "r");
+		this.index = new RandomAccessFile(indexFile, "r");
+		this.segmentChannel = segment.getChannel();
+		this.indexChannel = index.getChannel();
+		// Partially written trailing records (e.g. after a crash) are ignored
+		this.recordCount = (int) (indexChannel.size() / SegmentWriter.INDEX_ENTRY_SIZE);
+		while (recordCount > 0 && !isComplete(recordCount - 1)) {
+			recordCount--;
+		}
+	}
+
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	public boolean hasNext() {
+		return nextRecord < recordCount;
+	}
+
+	public byte[] next() throws IOException {
+		return get(nextRecord++);
+	}
+
+	public long getTimestamp(int record) throws IOException {
+		readEntry(record);
+		return entry.getLong(8);
+	}
+
+	public byte[] get(int record) throws IOException {
+		readEntry(record);
+		long offset = entry.getLong(0);
+		length.clear();
+		readFully(segmentChannel, length, offset);
+		ByteBuffer data = ByteBuffer.allocate(length.getInt(0));
+		readFully(segmentChannel, data, offset + 4);
+		return data.array();
+	}
+
+	public void close() throws IOException {
+		segment.close();
+		index.close();
+	}
+
+	private void readEntry(int record) throws IOException {
+		if (record < 0 || record >= recordCount) {
+			throw new IndexOutOfBoundsException("Record " + record + " of " + recordCount);
+		}
+		entry.clear();
+		readFully(indexChannel, entry, (long) record * SegmentWriter.INDEX_ENTRY_SIZE);
+	}
+
+	private boolean isComplete(int record) throws IOException {
+		readEntry(record);
+		long offset = entry.getLong(0);
+		if (offset + 4 > segmentChannel.size())
+			return false;
+		length.clear();
+		readFully(segmentChannel, length, offset);
+		return offset + 4 + length.getInt(0) <= segmentChannel.size();
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new IOException("Unexpected end of segment at " + position);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args == null || args.length == 0) {
+			System.out.println("Usage: SegmentReader <segment file> [record index]");
+			return;
+		}
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+		SegmentReader reader = new SegmentReader(new File(args[0]));
+		try {
+			int first = 0;
+			int last = reader.getRecordCount() - 1;
+			if (args.length > 1) {
+				first = last = Integer.parseInt(args[1]);
+			}
+			for (int i = first; i <= last; i++) {
+				System.out.println(i + " " + sdf.format(new Date(reader.getTimestamp(i))) + " "
+						+ new String(Hex.encodeHex(reader.get(i))));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Appends binary messages as length-prefixed records to rolling segment files.
+ * Each segment has a sidecar index with the offset and receive time of every
+ * record, see {@link SegmentReader}. Records reach the files within about a
+ * second of being appended, also when no further record follows.
+ *
+ * Segment record:	4 byte big-endian length, followed by the message bytes
+ * Index entry:		8 byte record offset, 8 byte timestamp in epoch milliseconds
+ */
+public class SegmentWriter implements Closeable {
+
+	private static final Logger logger = Logger.getLogger(SegmentWriter.class
+			.getName());
+
+	public static final String SEGMENT_SUFFIX = ".seg";
+	public static final String INDEX_SUFFIX = ".idx";
+	public static final int INDEX_ENTRY_SIZE = 16;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+	private File directory;
+	private String prefix;
+	private long maxSegmentBytes;
+	private SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss.SSS");
+	private int segmentCounter = 0;
+
+	private DataOutputStream segmentOut;
+	private DataOutputStream indexOut;
+	private long segmentSize;
+	private long lastFlush;
+	private boolean unflushed;
+	private ScheduledExecutorService flushTimer;
+
+	public SegmentWriter(File directory, String prefix, long maxSegmentBytes) {
+		this.directory = directory;
+		this.prefix = prefix;
+		this.maxSegmentBytes = maxSegmentBytes;
+		// Flushes the tail of a burst even when no further record arrives
+		flushTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SegmentFlush-" + SegmentWriter.this.prefix);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		flushTimer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flushIfDue();
+			}
+		}, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void append(byte[] record, long timestamp) throws IOException {
+		if (segmentOut == null || segmentSize >= maxSegmentBytes) {
+			roll();
+		}
+		indexOut.writeLong(segmentSize);
+		indexOut.writeLong(timestamp);
+		segmentOut.writeInt(record.length);
+		segmentOut.write(record);
+		segmentSize += 4 + record.length;
+		unflushed = true;
+		if (timestamp - lastFlush >= FLUSH_INTERVAL_MILLIS) {
+			flush();
+		}
+	}
+
+	public synchronized void flush() throws IOException {
+		if (segmentOut != null) {
+			// Segment first, so an index entry never points past the end of its segment
+			segmentOut.flush();
+			indexOut.flush();
+		}
+		unflushed = false;
+		lastFlush = System.currentTimeMillis();
+	}
+
+	public synchronized void close() throws IOException {
+		if (flushTimer != null) {
+			flushTimer.shutdownNow();
+			flushTimer = null;
+		}
+		closeSegment();
+	}
+
+	private synchronized void flushIfDue() {
+		if (unflushed && System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL_MILLIS) {
+			try {
+				flush();
+			} catch (IOException e) {
+				logger.warn("Failed to flush segment " + prefix, e);
+			}
+		}
+	}
+
+	private void closeSegment() throws IOException {
+		if (segmentOut != null) {
+			flush();
+			segmentOut.close();
+			indexOut.close();
+			segmentOut = null;
+			indexOut = null;
+		}
+	}
+
+	private void roll() throws IOException {
+		closeSegment();
+		String baseName = String.format("%s_%s_%s", prefix, sdf.format(new Date()), segmentCounter++);
+		File segmentFile = new File(directory, baseName + SEGMENT_SUFFIX);
+		File indexFile = new File(directory, baseName + INDEX_SUFFIX);
+		segmentOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segmentFile), BUFFER_SIZE));
+		indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), BUFFER_SIZE));
+		segmentSize = 0;
+		logger.info("Writing binary messages to segment " + segmentFile.getAbsolutePath());
+	}
+}
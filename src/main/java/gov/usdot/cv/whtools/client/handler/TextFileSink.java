@@ -0,0 +1,84 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes text data messages to a RollingTextWriter per stream, enabled by
+ * writeToDisk. Full records are always written as text, hex and base64
+ * records only when binaryFiles is off. A STOP: commits the stream's output.
+ */
+public class TextFileSink implements MessageSink {
+
+	private static final Logger logger = Logger.getLogger(TextFileSink.class
+			.getName());
+
+	private WarehouseConfig wsConfig;
+	private ConcurrentHashMap<String,RollingTextWriter> writers = new ConcurrentHashMap<String,RollingTextWriter>();
+
+	public void open(WarehouseConfig wsConfig) {
+		this.wsConfig = wsConfig;
+	}
+
+	public void onMessages(List<ResponseMessage> batch) {
+		for (ResponseMessage message : batch) {
+			ResponseStream stream = message.getStream();
+			if (stream == null)
+				continue;
+			try {
+				if (message.getType() == ResponseMessage.Type.DATA && (!wsConfig.binaryFiles || !message.isBinary())) {
+					getWriter(stream).write(message.getText());
+				} else if (message.getType() == ResponseMessage.Type.STOP) {
+					RollingTextWriter writer = writers.get(stream.getName());
+					if (writer != null)
+						writer.flush();
+				}
+			} catch (IOException e) {
+				logger.error("Failed to write received message to disk", e);
+			}
+		}
+	}
+
+	public boolean isBackedUp() {
+		return false;
+	}
+
+	public void close() {
+		for (RollingTextWriter writer : writers.values()) {
+			IOUtils.closeQuietly(writer);
+		}
+		writers.clear();
+	}
+
+	private RollingTextWriter getWriter(ResponseStream stream) {
+		RollingTextWriter writer = writers.get(stream.getName());
+		if (writer == null) {
+			writer = new RollingTextWriter(new File(wsConfig.responseDir), stream.getName(), wsConfig);
+			RollingTextWriter existing = writers.putIfAbsent(stream.getName(), writer);
+			if (existing != null) {
+				IOUtils.closeQuietly(writer);
+				writer = existing;
+			}
+		}
+		return writer;
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The counters, latency histograms and gauges of the client, registered by
+ * name. The hot paths keep a reference to their metric, so recording a value
+ * never looks anything up. All metrics are exposed as attributes of the JMX
+ * bean gov.usdot.cv.whtools:type=Metrics; a histogram shows up as its Count,
+ * MeanMicros, P50Micros, P99Micros and MaxMicros.
+ */
+public class MetricsRegistry implements DynamicMBean {
+
+	private static final Logger logger = Logger.getLogger(MetricsRegistry.class
+			.getName());
+
+	public static final String OBJECT_NAME = "gov.usdot.cv.whtools:type=Metrics";
+
+	private static final MetricsRegistry instance = new MetricsRegistry();
+
+	// Sorted so JMX and the summary log list the metrics in a stable order
+	private final Map<String,Counter> counters = new ConcurrentSkipListMap<String,Counter>();
+	private final Map<String,Histogram> histograms = new ConcurrentSkipListMap<String,Histogram>();
+	private final Map<String,Gauge> gauges = new ConcurrentSkipListMap<String,Gauge>();
+
+	public static MetricsRegistry getInstance() {
+		return instance;
+	}
+
+	public synchronized Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			counter = new Counter();
+			counters.put(name, counter);
+		}
+		return counter;
+	}
+
+	public synchronized Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histogram = new Histogram();
+			histograms.put(name, histogram);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Registers a gauge, replacing any gauge of the same name.
+	 */
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	public Map<String,Counter> getCounters() {
+		return counters;
+	}
+
+	public Map<String,Histogram> getHistograms() {
+		return histograms;
+	}
+
+	public Map<String,Gauge> getGauges() {
+		return gauges;
+	}
+
+	/**
+	 * Registers the registry with the platform MBean server, once.
+	 */
+	public synchronized void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+				logger.info("Metrics are available over JMX as " + OBJECT_NAME);
+			}
+		} catch (Exception e) {
+			logger.warn("Failed to register metrics MBean " + OBJECT_NAME, e);
+		}
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Counter counter = counters.get(attribute);
+		if (counter != null)
+			return counter.getCount();
+		Gauge gauge = gauges.get(attribute);
+		if (gauge != null)
+			return toDouble(gauge.getValue());
+		for (Map.Entry<String,Histogram> entry : histograms.entrySet()) {
+			String name = entry.getKey();
+			if (!attribute.startsWith(name))
+				continue;
+			Histogram histogram = entry.getValue();
+			String field = attribute.substring(name.length());
+			if (field.equals("Count"))
+				return histogram.getCount();
+			if (field.equals("MeanMicros"))
+				return histogram.getMeanNanos() / 1000.0;
+			if (field.equals("P50Micros"))
+				return histogram.getPercentileNanos(50) / 1000.0;
+			if (field.equals("P99Micros"))
+				return histogram.getPercentileNanos(99) / 1000.0;
+			if (field.equals("MaxMicros"))
+				return histogram.getMaxNanos() / 1000.0;
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				// Left out of the list as the DynamicMBean contract allows
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String name : counters.keySet()) {
+			attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", "Counter", true, false, false));
+		}
+		for (String name : gauges.keySet()) {
+			attributes.add(new MBeanAttributeInfo(name, "java.lang.Double", "Gauge", true, false, false));
+		}
+		for (String name : histograms.keySet()) {
+			attributes.add(new MBeanAttributeInfo(name + "Count", "java.lang.Long", "Samples recorded", true, false, false));
+			for (String field : new String[] { "MeanMicros", "P50Micros", "P99Micros", "MaxMicros" }) {
+				attributes.add(new MBeanAttributeInfo(name + field, "java.lang.Double", "Latency in microseconds", true, false, false));
+			}
+		}
+		return new MBeanInfo(getClass().getName(), "Warehouse client metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+	}
+
+	private static Double toDouble(Number value) {
+		return value == null ? null : value.doubleValue();
+	}
+}
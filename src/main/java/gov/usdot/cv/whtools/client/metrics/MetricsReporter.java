@@ -0,0 +1,99 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Logs one summary line of all metrics every metricsLogSeconds, with the rate
+ * of every counter since the previous line.
+ */
+public class MetricsReporter {
+
+	private static final Logger logger = Logger.getLogger(MetricsReporter.class
+			.getName());
+
+	private MetricsRegistry registry;
+	private long intervalSeconds;
+	private ScheduledExecutorService executor;
+	private Map<String,Long> lastCounts = new HashMap<String,Long>();
+	private long lastReport;
+
+	public MetricsReporter(MetricsRegistry registry, long intervalSeconds) {
+		this.registry = registry;
+		this.intervalSeconds = intervalSeconds;
+	}
+
+	public synchronized void start() {
+		if (executor != null || intervalSeconds <= 0)
+			return;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MetricsReporter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		lastReport = System.nanoTime();
+		executor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					report();
+				} catch (RuntimeException e) {
+					logger.warn("Failed to report metrics", e);
+				}
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+			report();
+		}
+	}
+
+	synchronized void report() {
+		long now = System.nanoTime();
+		double seconds = Math.max(1e-9, (now - lastReport) / 1e9);
+		lastReport = now;
+		StringBuilder sb = new StringBuilder("Metrics:");
+		for (Map.Entry<String,Counter> entry : registry.getCounters().entrySet()) {
+			long count = entry.getValue().getCount();
+			Long last = lastCounts.put(entry.getKey(), count);
+			double rate = (count - (last != null ? last : 0)) / seconds;
+			sb.append(String.format(" %s=%d (%.1f/s)", entry.getKey(), count, rate));
+		}
+		for (Map.Entry<String,Gauge> entry : registry.getGauges().entrySet()) {
+			Number value = entry.getValue().getValue();
+			sb.append(' ').append(entry.getKey()).append('=').append(value);
+		}
+		for (Map.Entry<String,Histogram> entry : registry.getHistograms().entrySet()) {
+			Histogram histogram = entry.getValue();
+			if (histogram.getCount() == 0)
+				continue;
+			sb.append(String.format(" %s[n=%d p50=%.0fus p99=%.0fus max=%.0fus]", entry.getKey(),
+					histogram.getCount(), histogram.getPercentileNanos(50) / 1000.0,
+					histogram.getPercentileNanos(99) / 1000.0, histogram.getMaxNanos() / 1000.0));
+		}
+		logger.info(sb.toString());
+	}
+}
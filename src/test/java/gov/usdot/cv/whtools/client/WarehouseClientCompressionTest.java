@@ -0,0 +1,122 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client;
+
+import static org.junit.Assert.assertTrue;
+
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+import gov.usdot.cv.whtools.client.handler.ResponseHandler;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.eclipse.jetty.websocket.server.WebSocketHandler;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Connects to an embedded Jetty WebSocket server with wsCompression and
+ * checks that permessage-deflate is negotiated and compresses the responses.
+ */
+public class WarehouseClientCompressionTest {
+
+	private static final int RECORDS = 50;
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	private static volatile List<ExtensionConfig> negotiated;
+
+	private Server server;
+	private WarehouseClient wsClient;
+
+	@WebSocket
+	public static class WarehouseStandIn {
+		@OnWebSocketConnect
+		public void onOpen(Session session) throws IOException {
+			negotiated = session.getUpgradeResponse().getExtensions();
+			session.getRemote().sendString("CONNECTED:{}");
+		}
+
+		@OnWebSocketMessage
+		public void onMessage(Session session, String message) throws IOException {
+			// Hex encoded records repeat a lot, like real Warehouse records
+			StringBuilder record = new StringBuilder();
+			for (int i = 0; i < 100; i++) {
+				record.append("3081a0800101810200ff8203").append(Integer.toHexString(i));
+			}
+			session.getRemote().sendString("START:{\"dialogID\":154,\"resultEncoding\":\"hex\"}");
+			for (int i = 0; i < RECORDS; i++) {
+				session.getRemote().sendString(record.toString());
+			}
+			session.getRemote().sendString("STOP:{\"recordCount\":" + RECORDS + "}");
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		server = new Server(0);
+		server.setHandler(new WebSocketHandler() {
+			public void configure(WebSocketServletFactory factory) {
+				factory.register(WarehouseStandIn.class);
+			}
+		});
+		server.start();
+		int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+
+		WarehouseConfig wsConfig = new WarehouseConfig();
+		wsConfig.warehouseURL = "ws://localhost:" + port + "/whtools/websocket";
+		wsConfig.jSessionID = "test";
+		wsConfig.wsCompression = true;
+		wsConfig.postLoadCalculateValues();
+		wsClient = WarehouseClient.configure(wsConfig, new ResponseHandler(wsConfig));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (wsClient != null)
+			wsClient.close();
+		server.stop();
+	}
+
+	@Test
+	public void negotiatesAndCompressesPerMessageDeflate() throws Exception {
+		wsClient.connect();
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!wsClient.isConnected() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertTrue("Not connected to the embedded server", wsClient.isConnected());
+		long received = CompressionStatsExtension.getUncompressedBytesIn();
+		wsClient.send("QUERY:{\"systemQueryName\":\"test\",\"dialogID\":154,\"resultEncoding\":\"hex\"}");
+		while (CompressionStatsExtension.getUncompressedBytesIn() - received < RECORDS * 2500
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+
+		boolean deflate = false;
+		for (ExtensionConfig extension : negotiated) {
+			deflate |= "permessage-deflate".equals(extension.getName());
+		}
+		assertTrue("permessage-deflate not in the upgrade response: " + negotiated, deflate);
+		assertTrue("Compression ratio " + CompressionStatsExtension.getCompressionRatioIn() + " is not above 1",
+				CompressionStatsExtension.getCompressionRatioIn() > 1);
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.client.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import gov.usdot.cv.whtools.client.WarehouseClient;
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.server.WebSocketHandler;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Appends to a file faster than watchDebounceMillis in depositTailMode and
+ * checks that the new lines are deposited while the file is still growing,
+ * each of them once.
+ */
+public class DepositHandlerTailModeTest {
+
+	private static final long DEBOUNCE_MILLIS = 300;
+	private static final long APPEND_MILLIS = 50;
+	private static final int LINES = 60;
+	private static final long TIMEOUT_MILLIS = 10000;
+	private static final String MSG_FIELD = "\"encodedMsg\": \"";
+
+	private static final List<String> deposited = new ArrayList<String>();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Server server;
+	private WarehouseClient wsClient;
+	private DepositHandler depositHandler;
+
+	@WebSocket
+	public static class WarehouseStandIn {
+		@OnWebSocketConnect
+		public void onOpen(Session session) throws IOException {
+			session.getRemote().sendString("CONNECTED:{}");
+		}
+
+		@OnWebSocketMessage
+		public void onMessage(Session session, String message) {
+			int start = message.indexOf(MSG_FIELD);
+			if (!message.startsWith("DEPOSIT:") || start < 0)
+				return;
+			start += MSG_FIELD.length();
+			synchronized (deposited) {
+				deposited.add(message.substring(start, message.indexOf('"', start)));
+			}
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		synchronized (deposited) {
+			deposited.clear();
+		}
+		server = new Server(0);
+		server.setHandler(new WebSocketHandler() {
+			public void configure(WebSocketServletFactory factory) {
+				factory.register(WarehouseStandIn.class);
+			}
+		});
+		server.start();
+		int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+
+		WarehouseConfig wsConfig = new WarehouseConfig();
+		wsConfig.warehouseURL = "ws://localhost:" + port + "/whtools/websocket";
+		wsConfig.jSessionID = "test";
+		wsConfig.systemDepositName = "test";
+		wsConfig.encodeType = "hex";
+		wsConfig.depositTailMode = true;
+		wsConfig.watchDebounceMillis = DEBOUNCE_MILLIS;
+		wsConfig.depositCheckpointDir = folder.newFolder("checkpoints").getAbsolutePath();
+		wsConfig.postLoadCalculateValues();
+		wsClient = WarehouseClient.configure(wsConfig, new ResponseHandler(wsConfig));
+		wsClient.connect();
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!wsClient.isConnected() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertTrue("Not connected to the embedded server", wsClient.isConnected());
+		depositHandler = new DepositHandler(folder.newFolder("deposits").getAbsolutePath(), wsClient, wsConfig);
+		depositHandler.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (depositHandler != null)
+			depositHandler.stop();
+		if (wsClient != null)
+			wsClient.close();
+		server.stop();
+	}
+
+	@Test
+	public void depositsLinesOfAGrowingFile() throws Exception {
+		File file = new File(folder.getRoot(), "deposits/records.txt");
+		int whileGrowing = 0;
+		Writer out = new FileWriter(file);
+		try {
+			for (int i = 0; i < LINES; i++) {
+				out.write(line(i) + "\n");
+				out.flush();
+				Thread.sleep(APPEND_MILLIS);
+				if (i == LINES - 1) {
+					whileGrowing = depositedCount();
+				}
+			}
+		} finally {
+			out.close();
+		}
+		assertTrue("Nothing was deposited while the file was being appended to", whileGrowing > 0);
+
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (depositedCount() < LINES && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		Thread.sleep(2 * DEBOUNCE_MILLIS);
+		synchronized (deposited) {
+			assertEquals("Lines deposited", LINES, deposited.size());
+			for (int i = 0; i < LINES; i++) {
+				assertEquals(line(i), deposited.get(i));
+			}
+		}
+	}
+
+	private static String line(int i) {
+		return String.format("%04x", i);
+	}
+
+	private static int depositedCount() {
+		synchronized (deposited) {
+			return deposited.size();
+		}
+	}
+}
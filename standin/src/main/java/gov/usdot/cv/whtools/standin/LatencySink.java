@@ -0,0 +1,94 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.standin;
+
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+import gov.usdot.cv.whtools.client.handler.MessageSink;
+import gov.usdot.cv.whtools.client.handler.ResponseMessage;
+import gov.usdot.cv.whtools.client.metrics.Counter;
+import gov.usdot.cv.whtools.client.metrics.Histogram;
+import gov.usdot.cv.whtools.client.metrics.MetricsRegistry;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the records handed to the sinks and records their end-to-end latency
+ * from the sentNanos the stand-in puts in "full" records, so the latency
+ * covers the server send, the network, decoding and the response queues.
+ */
+public class LatencySink implements MessageSink {
+
+	private static final String SENT_NANOS = "\"sentNanos\":";
+
+	static final Counter sessionsConnected = MetricsRegistry.getInstance().counter("loadSessionsConnected");
+	static final Counter recordsReceived = MetricsRegistry.getInstance().counter("loadRecordsReceived");
+	static final Counter errorsReceived = MetricsRegistry.getInstance().counter("loadErrorsReceived");
+	static final Histogram endToEndLatency = MetricsRegistry.getInstance().histogram("loadEndToEndLatency");
+	// Simulated processing time per record, to load test with a slow sink
+	static volatile long recordMicros;
+
+	public void open(WarehouseConfig wsConfig) {
+	}
+
+	public void onMessages(List<ResponseMessage> batch) {
+		long now = System.nanoTime();
+		for (ResponseMessage message : batch) {
+			if (message.getType() == ResponseMessage.Type.CONNECTED) {
+				sessionsConnected.inc();
+				continue;
+			}
+			if (message.getType() == ResponseMessage.Type.ERROR) {
+				errorsReceived.inc();
+				continue;
+			}
+			if (message.getType() != ResponseMessage.Type.DATA)
+				continue;
+			recordsReceived.inc();
+			long sentNanos = parseSentNanos(message.getRawText());
+			if (sentNanos != 0) {
+				endToEndLatency.record(now - sentNanos);
+			}
+		}
+		if (recordMicros > 0) {
+			try {
+				TimeUnit.MICROSECONDS.sleep(recordMicros * batch.size());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public boolean isBackedUp() {
+		return false;
+	}
+
+	public void close() {
+	}
+
+	private static long parseSentNanos(String record) {
+		int start = record.indexOf(SENT_NANOS);
+		if (start < 0)
+			return 0;
+		start += SENT_NANOS.length();
+		int end = start;
+		while (end < record.length() && (Character.isDigit(record.charAt(end)) || record.charAt(end) == '-')) {
+			end++;
+		}
+		try {
+			return Long.parseLong(record.substring(start, end));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.standin;
+
+import gov.usdot.cv.whtools.client.CASClient;
+import gov.usdot.cv.whtools.client.WarehouseClient;
+import gov.usdot.cv.whtools.client.config.ConfigUtils;
+import gov.usdot.cv.whtools.client.config.WarehouseConfig;
+import gov.usdot.cv.whtools.client.handler.DepositFrameEncoder;
+import gov.usdot.cv.whtools.client.handler.DepositSender;
+import gov.usdot.cv.whtools.client.handler.ResponseHandler;
+import gov.usdot.cv.whtools.client.metrics.Counter;
+import gov.usdot.cv.whtools.client.metrics.Histogram;
+import gov.usdot.cv.whtools.client.metrics.MetricsRegistry;
+import gov.usdot.cv.whtools.client.metrics.MetricsReporter;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+/**
+ * Drives the client end to end against a {@link StandInServer}: logs in through
+ * CAS, opens the session pool, runs subscriptions at a given rate and deposits
+ * a given number of records, then reports throughput and latency.
+ *
+ * Options, all given as --name value:
+ *
+ *   subscriptions   subscriptions to run, at most one per session (4)
+ *   rate            records per second of each subscription (1000)
+ *   encoding        resultEncoding of the subscriptions, latency needs "full" (full)
+ *   deposits        deposits to send (10000)
+ *   depositRate     deposits per second, 0 sends as fast as the window allows (0)
+ *   sessions        sessionPoolSize of the client (4)
+ *   duration        seconds to run the subscriptions for (10)
+ *   compression     negotiate permessage-deflate (false)
+ *   depositRateControl  pace deposits by the adaptive rate controller (false)
+ *   depositSpool    send deposits through the spool in deposit-spool (false)
+ *   overflowPolicy  responseOverflowPolicy of the client (block)
+ *   sinkMicros      simulated processing time per record received (0)
+ *   connect         host:port of a stand-in started separately, which then
+ *                   uses its own subscriptionRate instead of rate
+ *
+ * The in-process server also takes the StandInConfig options, e.g. dropSeconds
+ * to test reconnects.
+ */
+public class LoadGenerator {
+
+	private static final Logger logger = Logger.getLogger(LoadGenerator.class
+			.getName());
+
+	public static void main(String[] args) {
+		ConfigUtils.initLogger();
+		try {
+			run(Options.parse(args));
+		} catch (Exception e) {
+			logger.error("Load test failed", e);
+			// The Jetty and client threads would keep the JVM alive
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	private static void run(Options options) throws Exception {
+		int sessions = options.getInt("sessions", 4);
+		int subscriptions = options.getInt("subscriptions", 4);
+		double rate = options.getDouble("rate", 1000);
+		String encoding = options.getString("encoding", "full");
+		int deposits = options.getInt("deposits", 10000);
+		double depositRate = options.getDouble("depositRate", 0);
+		int duration = options.getInt("duration", 10);
+		String connect = options.getString("connect", null);
+
+		if (subscriptions > sessions) {
+			logger.warn("A session runs one subscription, running " + sessions + " instead of " + subscriptions);
+			subscriptions = sessions;
+		}
+
+		StandInServer server = null;
+		String host;
+		if (connect == null) {
+			StandInConfig standInConfig = StandInConfig.fromOptions(options);
+			standInConfig.port = options.getInt("port", 0);
+			standInConfig.subscriptionRate = rate;
+			server = new StandInServer(standInConfig);
+			server.start();
+			host = "localhost:" + server.getPort();
+		} else {
+			host = connect;
+		}
+
+		WarehouseConfig wsConfig = new WarehouseConfig();
+		wsConfig.warehouseURL = "ws://" + host + StandInServer.WAREHOUSE_PATH;
+		wsConfig.casURL = "http://" + host + StandInServer.CAS_PATH;
+		wsConfig.casUserName = "load";
+		wsConfig.casPassword = "load";
+		wsConfig.casRenewMinutes = -1;
+		wsConfig.sessionPoolSize = sessions;
+		wsConfig.wsCompression = options.getBoolean("compression", false);
+		wsConfig.messageSinks = new String[] { LatencySink.class.getName() };
+		wsConfig.responseOverflowPolicy = options.getString("overflowPolicy", WarehouseConfig.DEFAULT_RESPONSE_OVERFLOW_POLICY);
+		LatencySink.recordMicros = options.getInt("sinkMicros", 0);
+		wsConfig.systemDepositName = "SDC 2.3";
+		wsConfig.encodeType = "hex";
+		wsConfig.depositRateControl = options.getBoolean("depositRateControl", false);
+		wsConfig.depositSpool = options.getBoolean("depositSpool", false);
+		wsConfig.postLoadCalculateValues();
+
+		MetricsReporter metricsReporter = new MetricsReporter(MetricsRegistry.getInstance(),
+				options.getInt("metricsLogSeconds", 5));
+		metricsReporter.start();
+
+		CASClient casClient = CASClient.configure(wsConfig);
+		long loginStart = System.nanoTime();
+		wsConfig.jSessionID = casClient.login();
+		long loginMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loginStart);
+
+		ResponseHandler handler = new ResponseHandler(wsConfig);
+		WarehouseClient wsClient = WarehouseClient.configure(wsConfig, handler);
+		wsClient.setCASClient(casClient);
+		wsClient.connect();
+		waitForSessions(sessions);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < subscriptions; i++) {
+			wsClient.send("SUBSCRIBE:{\"systemSubName\":\"SDC 2.3\",\"dialogID\":154,\"vsmType\":1,"
+					+ "\"resultEncoding\":\"" + encoding + "\"}", "load-subscription-" + i);
+		}
+
+		DepositSender depositSender = new DepositSender(wsClient, wsConfig);
+		depositSender.start();
+		long depositMillis = sendDeposits(depositSender, wsConfig, deposits, depositRate,
+				options.getInt("payloadBytes", StandInConfig.DEFAULT_PAYLOAD_BYTES));
+
+		long remaining = TimeUnit.SECONDS.toNanos(duration) - (System.nanoTime() - start);
+		if (remaining > 0) {
+			TimeUnit.NANOSECONDS.sleep(remaining);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long received = LatencySink.recordsReceived.getCount();
+		Histogram latency = LatencySink.endToEndLatency;
+
+		StringBuilder report = new StringBuilder("Load test results\n");
+		report.append(String.format("  CAS login            %d ms%n", loginMillis));
+		report.append(String.format("  subscriptions        %d at %.0f records/s, %s encoding%n", subscriptions, rate, encoding));
+		report.append(String.format("  records received     %d in %.1f s, %.0f records/s%n", received, seconds, received / seconds));
+		if (latency.getCount() > 0) {
+			report.append(String.format("  end-to-end latency   p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+					latency.getPercentileNanos(50) / 1e6, latency.getPercentileNanos(99) / 1e6,
+					latency.getMaxNanos() / 1e6));
+		}
+		report.append(String.format("  deposits sent        %d of %d in %d ms, %.0f deposits/s, %d failed%n",
+				depositSender.getSentCount(), deposits, depositMillis,
+				depositMillis > 0 ? depositSender.getSentCount() * 1000.0 / depositMillis : 0,
+				depositSender.getFailedCount()));
+		if (wsConfig.depositRateControl) {
+			report.append(String.format("  deposit rate         %.0f/s at the end%n", depositSender.getRate()));
+		}
+		report.append(String.format("  ERROR: received      %d%n", LatencySink.errorsReceived.getCount()));
+		Histogram readPause = MetricsRegistry.getInstance().histogram("readPause");
+		if (readPause.getCount() > 0) {
+			report.append(String.format("  reading paused       %d times, %d ms in total, max %.0f ms%n", readPause.getCount(),
+					MetricsRegistry.getInstance().counter("readPausedMillis").getCount(), readPause.getMaxNanos() / 1e6));
+		}
+		Counter reconnects = MetricsRegistry.getInstance().counter("reconnects");
+		if (reconnects.getCount() > 0) {
+			Histogram gap = MetricsRegistry.getInstance().histogram("connectionGap");
+			report.append(String.format("  reconnects           %d, gap mean %.0f ms, max %.0f ms%n", reconnects.getCount(),
+					gap.getMeanNanos() / 1e6, gap.getMaxNanos() / 1e6));
+		}
+		if (server != null) {
+			report.append("  server               " + server.describe());
+		}
+		logger.info(report);
+
+		depositSender.stop();
+		metricsReporter.stop();
+		wsClient.close();
+		handler.close();
+		casClient.close();
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Waits for the CONNECTED: of every session, so no request goes to a
+	 * session that is still connecting.
+	 */
+	private static void waitForSessions(int sessions) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (LatencySink.sessionsConnected.getCount() < sessions && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		if (LatencySink.sessionsConnected.getCount() < sessions) {
+			throw new IllegalStateException("Only " + LatencySink.sessionsConnected.getCount() + " of " + sessions
+					+ " sessions connected");
+		}
+	}
+
+	/**
+	 * Sends the deposits and waits until all of them completed, returning the
+	 * milliseconds it took.
+	 */
+	private static long sendDeposits(DepositSender depositSender, WarehouseConfig wsConfig, int deposits,
+			double depositRate, int payloadBytes) throws InterruptedException {
+		if (deposits <= 0)
+			return 0;
+		DepositFrameEncoder encoder = new DepositFrameEncoder(wsConfig.systemDepositName, wsConfig.encodeType);
+		byte[] payload = new byte[payloadBytes];
+		new Random(payloadBytes).nextBytes(payload);
+		String encodedMsg = Hex.encodeHexString(payload);
+		long start = System.nanoTime();
+		for (int i = 0; i < deposits; i++) {
+			if (depositRate > 0) {
+				long due = start + (long) (i * 1e9 / depositRate);
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+			}
+			depositSender.submit(encoder.encode(encodedMsg), "load-deposits", null);
+		}
+		depositSender.flush();
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+}
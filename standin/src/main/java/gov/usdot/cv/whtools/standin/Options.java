@@ -0,0 +1,55 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.standin;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line options given as --name value pairs.
+ */
+public class Options {
+
+	private Map<String,String> values = new HashMap<String,String>();
+
+	public static Options parse(String[] args) {
+		Options options = new Options();
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("--") || i + 1 >= args.length) {
+				throw new IllegalArgumentException("Expected --name value but got " + args[i]);
+			}
+			options.values.put(args[i].substring(2), args[++i]);
+		}
+		return options;
+	}
+
+	public String getString(String name, String defaultValue) {
+		String value = values.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	public int getInt(String name, int defaultValue) {
+		String value = values.get(name);
+		return value != null ? Integer.parseInt(value) : defaultValue;
+	}
+
+	public double getDouble(String name, double defaultValue) {
+		String value = values.get(name);
+		return value != null ? Double.parseDouble(value) : defaultValue;
+	}
+
+	public boolean getBoolean(String name, boolean defaultValue) {
+		String value = values.get(name);
+		return value != null ? Boolean.parseBoolean(value) : defaultValue;
+	}
+}
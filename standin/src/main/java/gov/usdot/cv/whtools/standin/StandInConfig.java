@@ -0,0 +1,62 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.standin;
+
+/**
+ * Settings of the stand-in server.
+ */
+public class StandInConfig {
+
+	public static final int DEFAULT_PORT = 8090;
+	public static final double DEFAULT_SUBSCRIPTION_RATE = 100;
+	public static final int DEFAULT_QUERY_RESULT_SIZE = 1000;
+	public static final int DEFAULT_PAYLOAD_BYTES = 128;
+	public static final int DEFAULT_MAX_PENDING_SENDS = 4096;
+
+	// 0 picks a free port
+	public int port = DEFAULT_PORT;
+	// Records per second of a subscription that gives no messageDelay
+	public double subscriptionRate = DEFAULT_SUBSCRIPTION_RATE;
+	// Records a query matches before skip and limit are applied
+	public int queryResultSize = DEFAULT_QUERY_RESULT_SIZE;
+	public int payloadBytes = DEFAULT_PAYLOAD_BYTES;
+	// Probability of answering a valid deposit with ERROR:
+	public double depositErrorRate;
+	// Sends a session may have outstanding before subscription records are dropped
+	public int maxPendingSends = DEFAULT_MAX_PENDING_SENDS;
+	// Refuse WebSocket upgrades without a JSESSIONID issued by the service endpoint
+	public boolean requireSession = true;
+	// Every dropSeconds close all sessions and expire their session IDs, 0 never
+	public int dropSeconds;
+
+	public static StandInConfig fromOptions(Options options) {
+		StandInConfig config = new StandInConfig();
+		config.port = options.getInt("port", DEFAULT_PORT);
+		config.subscriptionRate = options.getDouble("subscriptionRate", DEFAULT_SUBSCRIPTION_RATE);
+		config.queryResultSize = options.getInt("queryResultSize", DEFAULT_QUERY_RESULT_SIZE);
+		config.payloadBytes = options.getInt("payloadBytes", DEFAULT_PAYLOAD_BYTES);
+		config.depositErrorRate = options.getDouble("depositErrorRate", 0);
+		config.maxPendingSends = options.getInt("maxPendingSends", DEFAULT_MAX_PENDING_SENDS);
+		config.requireSession = options.getBoolean("requireSession", true);
+		config.dropSeconds = options.getInt("dropSeconds", 0);
+		return config;
+	}
+
+	@Override
+	public String toString() {
+		return "StandInConfig [port=" + port + ", subscriptionRate=" + subscriptionRate
+				+ ", queryResultSize=" + queryResultSize + ", payloadBytes=" + payloadBytes
+				+ ", depositErrorRate=" + depositErrorRate + ", maxPendingSends=" + maxPendingSends
+				+ ", requireSession=" + requireSession + ", dropSeconds=" + dropSeconds + "]";
+	}
+}
@@ -0,0 +1,326 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.standin;
+
+import gov.usdot.cv.whtools.client.config.ConfigUtils;
+
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.eclipse.jetty.websocket.server.WebSocketHandler;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
+import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+
+/**
+ * A local stand-in for the Warehouse and its CAS server, so the client can be
+ * run and load tested without the real endpoints. It serves
+ *
+ *   /accounts/v1/tickets          CAS ticket granting and service tickets
+ *   /whtools23/websocket          the service login that sets JSESSIONID, and
+ *                                 the Warehouse WebSocket
+ *
+ * Any user name and password is accepted. Records are generated, see
+ * {@link WarehouseSocket} for the protocol that is implemented.
+ */
+public class StandInServer {
+
+	private static final Logger logger = Logger.getLogger(StandInServer.class
+			.getName());
+
+	public static final String CAS_PATH = "/accounts/v1/tickets";
+	public static final String WAREHOUSE_CONTEXT = "/whtools23";
+	public static final String WAREHOUSE_PATH = WAREHOUSE_CONTEXT + "/websocket";
+	private static final String JSESSIONID = "JSESSIONID";
+	private static final long TICK_MILLIS = 10;
+
+	private StandInConfig config;
+	private Server server;
+	private ServerConnector connector;
+	private ScheduledExecutorService ticker;
+	private String hexPayload;
+	private final Set<String> ticketGrantingTickets = ConcurrentHashMap.newKeySet();
+	private final Set<String> serviceTickets = ConcurrentHashMap.newKeySet();
+	private final Set<String> sessionIDs = ConcurrentHashMap.newKeySet();
+	private final Set<WarehouseSocket> sockets = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger ticketCount = new AtomicInteger();
+
+	final AtomicLong logins = new AtomicLong();
+	final AtomicLong connections = new AtomicLong();
+	final AtomicLong queries = new AtomicLong();
+	final AtomicLong subscriptions = new AtomicLong();
+	final AtomicLong recordsSent = new AtomicLong();
+	final AtomicLong recordsDropped = new AtomicLong();
+	final AtomicLong depositsReceived = new AtomicLong();
+	final AtomicLong depositsRejected = new AtomicLong();
+	final AtomicLong errorsSent = new AtomicLong();
+	final AtomicLong drops = new AtomicLong();
+
+	public StandInServer(StandInConfig config) {
+		this.config = config;
+		byte[] payload = new byte[config.payloadBytes];
+		new Random(config.payloadBytes).nextBytes(payload);
+		this.hexPayload = Hex.encodeHexString(payload);
+	}
+
+	public void start() throws Exception {
+		server = new Server();
+		connector = new ServerConnector(server);
+		connector.setPort(config.port);
+		server.addConnector(connector);
+
+		ContextHandler cas = new ContextHandler(CAS_PATH);
+		// The client posts to the path itself, without the trailing slash
+		cas.setAllowNullPathInfo(true);
+		cas.setHandler(new TicketHandler());
+
+		// Plain requests fall through the WebSocketHandler to the service login
+		WebSocketHandler webSocketHandler = new WebSocketHandler() {
+			@Override
+			public void configure(WebSocketServletFactory factory) {
+				factory.getPolicy().setMaxTextMessageSize(16 * 1024 * 1024);
+				factory.setCreator(new SocketCreator());
+			}
+		};
+		webSocketHandler.setHandler(new ServiceHandler());
+		ContextHandler warehouse = new ContextHandler(WAREHOUSE_CONTEXT);
+		warehouse.setHandler(webSocketHandler);
+
+		ContextHandlerCollection contexts = new ContextHandlerCollection();
+		contexts.addHandler(cas);
+		contexts.addHandler(warehouse);
+		server.setHandler(contexts);
+		server.start();
+
+		ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "StandInTicker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		ticker.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				long now = System.nanoTime();
+				for (WarehouseSocket socket : sockets) {
+					try {
+						socket.tick(now);
+					} catch (RuntimeException e) {
+						logger.error("Subscription tick failed", e);
+					}
+				}
+			}
+		}, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+		if (config.dropSeconds > 0) {
+			ticker.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					dropSessions();
+				}
+			}, config.dropSeconds, config.dropSeconds, TimeUnit.SECONDS);
+		}
+		logger.info("Stand-in Warehouse listening on port " + getPort() + " with " + config);
+	}
+
+	public void stop() throws Exception {
+		if (ticker != null) {
+			ticker.shutdownNow();
+		}
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Closes every open session and expires the session IDs, so clients have
+	 * to log in to CAS again before they can reconnect.
+	 */
+	public void dropSessions() {
+		drops.incrementAndGet();
+		sessionIDs.clear();
+		logger.info("Dropping " + sockets.size() + " session(s)");
+		for (WarehouseSocket socket : sockets) {
+			socket.drop();
+		}
+	}
+
+	public int getPort() {
+		return connector.getLocalPort();
+	}
+
+	public String getWarehouseURL() {
+		return "ws://localhost:" + getPort() + WAREHOUSE_PATH;
+	}
+
+	public String getCasURL() {
+		return "http://localhost:" + getPort() + CAS_PATH;
+	}
+
+	StandInConfig getConfig() {
+		return config;
+	}
+
+	String getHexPayload() {
+		return hexPayload;
+	}
+
+	void register(WarehouseSocket socket) {
+		sockets.add(socket);
+	}
+
+	void unregister(WarehouseSocket socket) {
+		sockets.remove(socket);
+	}
+
+	public long getDepositsReceived() {
+		return depositsReceived.get();
+	}
+
+	public long getDepositsRejected() {
+		return depositsRejected.get();
+	}
+
+	public long getRecordsSent() {
+		return recordsSent.get();
+	}
+
+	public long getRecordsDropped() {
+		return recordsDropped.get();
+	}
+
+	public String describe() {
+		return "logins=" + logins.get() + " connections=" + connections.get() + " queries=" + queries.get()
+				+ " subscriptions=" + subscriptions.get() + " recordsSent=" + recordsSent.get()
+				+ " recordsDropped=" + recordsDropped.get() + " depositsReceived=" + depositsReceived.get()
+				+ " depositsRejected=" + depositsRejected.get() + " errorsSent=" + errorsSent.get()
+				+ " drops=" + drops.get();
+	}
+
+	/**
+	 * POST with username and password returns a ticket granting ticket in the
+	 * form action, POST to the ticket with a service returns a service ticket.
+	 */
+	private class TicketHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException {
+			baseRequest.setHandled(true);
+			if (!"POST".equals(request.getMethod())) {
+				response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+				return;
+			}
+			String ticket = target.startsWith("/") ? target.substring(1) : target;
+			if (ticket.isEmpty()) {
+				if (request.getParameter("username") == null || request.getParameter("password") == null) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, "username and password are required");
+					return;
+				}
+				String tgt = "TGT-" + ticketCount.incrementAndGet() + "-standin";
+				ticketGrantingTickets.add(tgt);
+				response.setStatus(HttpServletResponse.SC_CREATED);
+				response.setContentType("text/html");
+				response.getWriter().print("<html><body><form action=\"" + request.getRequestURL() + "/" + tgt
+						+ "\" method=\"POST\"></form></body></html>");
+			} else if (ticketGrantingTickets.contains(ticket) && request.getParameter("service") != null) {
+				String st = "ST-" + ticketCount.incrementAndGet() + "-standin";
+				serviceTickets.add(st);
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setContentType("text/plain");
+				response.getWriter().print(st);
+			} else {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown ticket " + ticket);
+			}
+		}
+	}
+
+	/**
+	 * The service login, a GET with a valid service ticket sets the JSESSIONID cookie.
+	 */
+	private class ServiceHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException {
+			baseRequest.setHandled(true);
+			String ticket = request.getParameter("ticket");
+			if (ticket == null || !serviceTickets.remove(ticket)) {
+				response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Invalid service ticket");
+				return;
+			}
+			String sessionID = UUID.randomUUID().toString().replace("-", "").toUpperCase();
+			sessionIDs.add(sessionID);
+			logins.incrementAndGet();
+			Cookie cookie = new Cookie(JSESSIONID, sessionID);
+			cookie.setPath("/");
+			response.addCookie(cookie);
+			response.setStatus(HttpServletResponse.SC_OK);
+		}
+	}
+
+	private class SocketCreator implements WebSocketCreator {
+		public Object createWebSocket(ServletUpgradeRequest req, ServletUpgradeResponse resp) {
+			if (config.requireSession && !hasSession(req)) {
+				try {
+					resp.sendForbidden("No valid " + JSESSIONID);
+				} catch (IOException e) {
+					logger.warn("Failed to refuse WebSocket upgrade", e);
+				}
+				return null;
+			}
+			connections.incrementAndGet();
+			return new WarehouseSocket(StandInServer.this);
+		}
+
+		private boolean hasSession(ServletUpgradeRequest req) {
+			if (req.getCookies() == null)
+				return false;
+			for (HttpCookie cookie : req.getCookies()) {
+				if (JSESSIONID.equals(cookie.getName()) && sessionIDs.contains(cookie.getValue()))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ConfigUtils.initLogger();
+		final StandInServer server = new StandInServer(StandInConfig.fromOptions(Options.parse(args)));
+		server.start();
+		logger.info("Point warehouseURL at " + server.getWarehouseURL() + " and casURL at " + server.getCasURL());
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				logger.info("Stand-in totals: " + server.describe());
+			}
+		}, "StandInShutdownHook"));
+		server.server.join();
+	}
+}
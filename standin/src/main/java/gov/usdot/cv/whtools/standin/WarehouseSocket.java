@@ -0,0 +1,274 @@
+/**
+ * Copyright 2014 Leidos
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.usdot.cv.whtools.standin;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+
+/**
+ * One Warehouse WebSocket session of the stand-in server.
+ *
+ *   CONNECTED:   sent when the session opens
+ *   QUERY:       answered with START:, queryResultSize records less skip and
+ *                limited by limit, and STOP:{"recordCount":n}
+ *   SUBSCRIBE:   answered with START: and then records every messageDelay ms,
+ *                or at subscriptionRate per second without a messageDelay.
+ *                A new SUBSCRIBE replaces the running one. Records are
+ *                dropped while maxPendingSends are outstanding, like a
+ *                server dropping a slow consumer's messages.
+ *   DEPOSIT:     checked and counted, ERROR: if invalid or injected
+ *   anything else is answered with ERROR:
+ *
+ * Records with resultEncoding "full" carry a sequence number and the
+ * System.nanoTime() they were sent at, for latency measurements on the same host.
+ */
+@WebSocket(maxIdleTime=0)
+public class WarehouseSocket {
+
+	private static final Logger logger = Logger.getLogger(WarehouseSocket.class
+			.getName());
+
+	private static final String QUERY_TAG = "QUERY:";
+	private static final String SUBSCRIBE_TAG = "SUBSCRIBE:";
+	private static final String DEPOSIT_TAG = "DEPOSIT:";
+	private static final String ENCODE_TYPE_HEX = "hex";
+	private static final AtomicInteger socketCount = new AtomicInteger();
+
+	private final StandInServer server;
+	private final StandInConfig config;
+	private final String id = "standin-" + socketCount.incrementAndGet();
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicLong sequence = new AtomicLong();
+	private volatile Session session;
+	private volatile Subscription subscription;
+
+	public WarehouseSocket(StandInServer server) {
+		this.server = server;
+		this.config = server.getConfig();
+	}
+
+	@OnWebSocketConnect
+	public void onConnect(Session session) {
+		this.session = session;
+		server.register(this);
+		send("CONNECTED:{\"connectionId\":\"" + id + "\"}");
+	}
+
+	/**
+	 * Closes the session from the server side, like a Warehouse restart.
+	 */
+	void drop() {
+		Session current = session;
+		if (current != null) {
+			current.close(StatusCode.SHUTDOWN, "Stand-in dropped the session");
+		}
+	}
+
+	@OnWebSocketClose
+	public void onClose(int code, String reason) {
+		server.unregister(this);
+		subscription = null;
+		session = null;
+	}
+
+	@OnWebSocketMessage
+	public void onMessage(String message) {
+		try {
+			if (message.startsWith(QUERY_TAG)) {
+				query(mapper.readTree(message.substring(QUERY_TAG.length())));
+			} else if (message.startsWith(SUBSCRIBE_TAG)) {
+				subscribe(mapper.readTree(message.substring(SUBSCRIBE_TAG.length())));
+			} else if (message.startsWith(DEPOSIT_TAG)) {
+				deposit(mapper.readTree(message.substring(DEPOSIT_TAG.length())));
+			} else {
+				error("Unknown request " + abbreviate(message));
+			}
+		} catch (IOException e) {
+			error("Invalid JSON in " + abbreviate(message));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void query(JsonNode request) throws InterruptedException {
+		if (!request.has("systemQueryName") || !request.has("dialogID")) {
+			error("systemQueryName and dialogID are required");
+			return;
+		}
+		server.queries.incrementAndGet();
+		int dialogID = request.get("dialogID").getIntValue();
+		String encoding = request.path("resultEncoding").asText();
+		if (encoding.isEmpty())
+			encoding = ENCODE_TYPE_HEX;
+		int skip = Math.max(0, request.path("skip").getIntValue());
+		int limit = request.path("limit").getIntValue();
+		int count = Math.max(0, config.queryResultSize - skip);
+		if (limit > 0)
+			count = Math.min(count, limit);
+		send(startTag(dialogID, encoding));
+		for (int i = 0; i < count; i++) {
+			// Queries are not dropped, wait for the client to catch up instead
+			while (pending.get() >= config.maxPendingSends) {
+				Thread.sleep(1);
+			}
+			send(record(dialogID, encoding));
+		}
+		send("STOP:{\"recordCount\":" + count + "}");
+	}
+
+	private void subscribe(JsonNode request) {
+		if (!request.has("systemSubName") || !request.has("dialogID")) {
+			error("systemSubName and dialogID are required");
+			return;
+		}
+		server.subscriptions.incrementAndGet();
+		int dialogID = request.get("dialogID").getIntValue();
+		String encoding = request.path("resultEncoding").asText();
+		if (encoding.isEmpty())
+			encoding = ENCODE_TYPE_HEX;
+		int messageDelay = request.path("messageDelay").getIntValue();
+		double rate = messageDelay > 0 ? 1000.0 / messageDelay : config.subscriptionRate;
+		send(startTag(dialogID, encoding));
+		subscription = new Subscription(dialogID, encoding, rate);
+		logger.info("Session " + id + " subscribed to dialogID " + dialogID + " at " + rate + " records/s");
+	}
+
+	private void deposit(JsonNode request) {
+		server.depositsReceived.incrementAndGet();
+		String encodeType = request.path("encodeType").asText();
+		String encodedMsg = request.path("encodedMsg").asText();
+		if (request.path("systemDepositName").asText().isEmpty() || encodeType.isEmpty() || encodedMsg.isEmpty()) {
+			rejectDeposit("systemDepositName, encodeType and encodedMsg are required");
+			return;
+		}
+		if (ENCODE_TYPE_HEX.equalsIgnoreCase(encodeType) || "ber".equalsIgnoreCase(encodeType)) {
+			try {
+				Hex.decodeHex(encodedMsg.toCharArray());
+			} catch (DecoderException e) {
+				rejectDeposit("encodedMsg is not valid hex");
+				return;
+			}
+		} else if ("base64".equalsIgnoreCase(encodeType)) {
+			if (!Base64.isBase64(encodedMsg)) {
+				rejectDeposit("encodedMsg is not valid base64");
+				return;
+			}
+		} else {
+			rejectDeposit("Unsupported encodeType " + encodeType);
+			return;
+		}
+		if (config.depositErrorRate > 0 && ThreadLocalRandom.current().nextDouble() < config.depositErrorRate) {
+			rejectDeposit("Injected deposit failure");
+		}
+	}
+
+	private void rejectDeposit(String reason) {
+		server.depositsRejected.incrementAndGet();
+		error(reason);
+	}
+
+	/**
+	 * Sends the records of the subscription that are due, called every few
+	 * milliseconds by the server's ticker.
+	 */
+	void tick(long now) {
+		Subscription current = subscription;
+		if (current == null)
+			return;
+		current.credit += current.rate * (now - current.lastTick) / 1e9;
+		current.lastTick = now;
+		// Never more than a second's worth at once after a stall
+		current.credit = Math.min(current.credit, Math.max(1, current.rate));
+		while (current.credit >= 1) {
+			current.credit--;
+			if (pending.get() >= config.maxPendingSends) {
+				server.recordsDropped.incrementAndGet();
+				continue;
+			}
+			send(record(current.dialogID, current.encoding));
+		}
+	}
+
+	private String startTag(int dialogID, String encoding) {
+		return "START:{\"dialogID\":" + dialogID + ",\"resultEncoding\":\"" + encoding + "\"}";
+	}
+
+	private String record(int dialogID, String encoding) {
+		server.recordsSent.incrementAndGet();
+		String hex = server.getHexPayload();
+		if (ENCODE_TYPE_HEX.equalsIgnoreCase(encoding))
+			return hex;
+		if ("base64".equalsIgnoreCase(encoding))
+			return Base64.encodeBase64String(hex.getBytes());
+		return "{\"dialogID\":" + dialogID + ",\"sourceName\":\"standin\",\"sequence\":" + sequence.incrementAndGet()
+				+ ",\"sentNanos\":" + System.nanoTime()
+				+ ",\"location\":{\"lat\":42.2929,\"lon\":-83.7125,\"elevation\":265.2},\"encodedMsg\":\"" + hex + "\"}";
+	}
+
+	private void error(String reason) {
+		server.errorsSent.incrementAndGet();
+		send("ERROR:{\"error\":\"" + reason.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}");
+	}
+
+	private void send(String message) {
+		Session current = session;
+		if (current == null || !current.isOpen())
+			return;
+		pending.incrementAndGet();
+		current.getRemote().sendString(message, new WriteCallback() {
+			public void writeSuccess() {
+				pending.decrementAndGet();
+			}
+
+			public void writeFailed(Throwable t) {
+				pending.decrementAndGet();
+				logger.debug("Send failed on " + id, t);
+			}
+		});
+	}
+
+	private static String abbreviate(String message) {
+		return message.length() > 64 ? message.substring(0, 64) + "..." : message;
+	}
+
+	private static class Subscription {
+		private final int dialogID;
+		private final String encoding;
+		private final double rate;
+		private double credit;
+		private long lastTick = System.nanoTime();
+
+		private Subscription(int dialogID, String encoding, double rate) {
+			this.dialogID = dialogID;
+			this.encoding = encoding;
+			this.rate = rate;
+		}
+	}
+}